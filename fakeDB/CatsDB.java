@@ -1,69 +1,651 @@
 package fakeDB;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.ToNumberPolicy;
 import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 
+// In-memory store shared by all worker threads.
+// Records are read-only maps: a change replaces the record, so a reader never sees half of an update.
+// Reads are optimistic (StampedLock): they do not block, and are repeated under the read lock only
+// when a write happened at the same time. Ids are handed out under the write lock, so records become
+// visible in id order (a cursor never skips one), and are indexed in IdIndex.
+// index() / sortedIndex() add SecondaryIndexes on other fields, used by find() for filters and pages.
+//
+// After persist() every change is also written to <file>.wal (WriteAheadLog) before it is acknowledged,
+// and the log is compacted into <file>.snapshot, a plain JSON array like the seed <file>. The seed is
+// only read while there is no snapshot, so it is never written.
+// When the log fails, the changes it did not sync are undone and the writers get an UncheckedIOException;
+// the store keeps serving reads, but every later change fails the same way until a restart:
+//
+//   CatsDB db = new CatsDB("fakeDB/cats.json").syncWindow(2).persist();
 public class CatsDB {
 
-    private List<Map<String, Object>> cats = new ArrayList<>();
-    private final Gson gson = new Gson();
+    private static final Type RECORD_TYPE = new TypeToken<Map<String, Object>>(){}.getType();
+
+    private final Gson gson = new GsonBuilder().setObjectToNumberStrategy(ToNumberPolicy.LONG_OR_DOUBLE).create();
     private final String filePath;
 
+    private final StampedLock lock = new StampedLock();
+    private final IdIndex<Map<String, Object>> byId = new IdIndex<>(); // guarded by lock
+    private int sequence = 0; // last id handed out, guarded by lock
+    private volatile long version = 0; // bumped by every change, under the write lock
+    private volatile Snapshot all; // last getAll() list, valid while its version is current
+
+    private long syncWindowMillis = 0;
+    private int maxBatch = 1024;
+    private long compactAfter = 10_000;
+    private volatile WriteAheadLog log; // null while the store is memory only
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ArrayDeque<Undo> unsynced = new ArrayDeque<>(); // guarded by lock, in log order
+
+    // replaced (never modified) by index() / sortedIndex(); the entries are guarded by lock
+    private volatile Map<String, SecondaryIndex> indexes = Collections.emptyMap();
+
+    // O pagină din find(): datele și cursorul paginii următoare (null la ultima pagină)
+    public static final class Page {
+        private final List<Map<String, Object>> data;
+        private final String next;
+
+        Page(List<Map<String, Object>> data, String next) {
+            this.data = data;
+            this.next = next;
+        }
+
+        public List<Map<String, Object>> getData() {
+            return data;
+        }
+
+        public String getNext() {
+            return next;
+        }
+    }
+
+    // What a logged change replaced: the previous record, or null if the change created it
+    private static final class Undo {
+        final long record;
+        final int id;
+        final Map<String, Object> previous;
+
+        Undo(long record, int id, Map<String, Object> previous) {
+            this.record = record;
+            this.id = id;
+            this.previous = previous;
+        }
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final List<Map<String, Object>> cats;
+
+        Snapshot(long version, List<Map<String, Object>> cats) {
+            this.version = version;
+            this.cats = cats;
+        }
+    }
+
     public CatsDB(String filePath) {
         this.filePath = filePath;
         loadFromFile();
     }
 
-    // Citește fișierul JSON la start
+    // Citește la start snapshot-ul, sau fișierul JSON inițial dacă nu există încă unul
     private void loadFromFile() {
+        List<Map<String, Object>> cats;
+        Path path = Files.exists(snapshotPath()) ? snapshotPath() : Paths.get(filePath);
         try {
-            String json = new String(Files.readAllBytes(Paths.get(filePath)), StandardCharsets.UTF_8);
-            cats = gson.fromJson(json, new TypeToken<List<Map<String,Object>>>(){}.getType());
+            String json = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            cats = gson.fromJson(json, new TypeToken<List<Map<String, Object>>>(){}.getType());
         } catch (Exception e) {
-            cats = new ArrayList<>();
+            cats = null;
+        }
+        if (cats == null) {
+            return;
         }
+        long stamp = lock.writeLock();
+        try {
+            for (Map<String, Object> cat : cats) {
+                Object id = cat.get("id");
+                if (id instanceof Number && ((Number) id).intValue() > 0) {
+                    int key = ((Number) id).intValue();
+                    store(key, freeze(cat, key));
+                    sequence = Math.max(sequence, key);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Cât așteaptă un fsync alți scriitori (ms); 0 = scrie imediat ce a terminat fsync-ul anterior
+    public CatsDB syncWindow(long millis) {
+        this.syncWindowMillis = millis;
+        return this;
     }
 
-    // Returnează toate pisicile
-    public List<Map<String,Object>> getAll() {
-        return cats;
+    // Câte schimbări intră cel mult într-un fsync
+    public CatsDB maxBatch(int records) {
+        this.maxBatch = records;
+        return this;
+    }
+
+    // După câte schimbări în log se scrie un snapshot nou
+    public CatsDB compactAfter(long records) {
+        this.compactAfter = records;
+        return this;
+    }
+
+    // Reia log-ul rămas de la ultima rulare și scrie de acum fiecare schimbare în el
+    public CatsDB persist() {
+        if (log != null) {
+            return this;
+        }
+        try {
+            // rotate() moves a segment only after it is synced, so only the tail of the current one can be torn
+            int replayed = replay(rotatedLogPath(), false) + replay(logPath(), true);
+            if (replayed > 0) {
+                // the next start only reads the snapshot
+                writeSnapshot(byId.values());
+                Files.deleteIfExists(rotatedLogPath());
+                Files.deleteIfExists(logPath());
+            }
+            log = new WriteAheadLog(logPath(), rotatedLogPath(), syncWindowMillis, maxBatch);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the log of " + filePath + ": " + e.getMessage(), e);
+        }
+        return this;
+    }
+
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    // Index hash pe un câmp: find() îl folosește pentru egalitate (?color=black)
+    public CatsDB index(String field) {
+        return addIndex(new SecondaryIndex(field, false));
+    }
+
+    // Index sortat pe un câmp: egalitate și intervale (?age.gte=2&age.lt=5)
+    public CatsDB sortedIndex(String field) {
+        return addIndex(new SecondaryIndex(field, true));
+    }
+
+    private CatsDB addIndex(SecondaryIndex index) {
+        long stamp = lock.writeLock();
+        try {
+            for (Map<String, Object> cat : byId.values()) {
+                index.add(cat, idOf(cat));
+            }
+            Map<String, SecondaryIndex> changed = new HashMap<>(indexes);
+            changed.put(index.field, index);
+            indexes = changed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return this;
+    }
+
+    // Caută după query params (vezi CatsQuery): câmp=valoare, câmp.gte=..., limit, cursor.
+    // Folosește un index când există, altfel parcurge pisicile în ordinea id-urilor;
+    // în ambele cazuri citește doar până umple pagina.
+    public Page find(Map<String, String> params) {
+        CatsQuery query = new CatsQuery(params);
+        Map<String, SecondaryIndex> indexes = this.indexes;
+        List<Map<String, Object>> page = new ArrayList<>();
+        boolean more;
+
+        if (usesIndex(query, indexes)) {
+            long stamp = lock.readLock();
+            try {
+                IdSet ids = candidates(query, indexes, byId.size() / 8);
+                if (ids != null) {
+                    int i = ids.indexAfter(query.after);
+                    while (i < ids.size() && page.size() < query.limit) {
+                        Map<String, Object> cat = byId.get(ids.get(i++));
+                        if (cat != null && query.matches(cat)) {
+                            page.add(cat);
+                        }
+                    }
+                    more = false;
+                    while (i < ids.size() && !more) {
+                        Map<String, Object> cat = byId.get(ids.get(i++));
+                        more = cat != null && query.matches(cat);
+                    }
+                    return page(page, more);
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // ids in order from the cached getAll() list, starting at the cursor
+        List<Map<String, Object>> cats = getAll();
+        int i = indexAfter(cats, query.after);
+        while (i < cats.size() && page.size() < query.limit) {
+            Map<String, Object> cat = cats.get(i++);
+            if (query.matches(cat)) {
+                page.add(cat);
+            }
+        }
+        more = false;
+        while (i < cats.size() && !more) {
+            more = query.matches(cats.get(i++));
+        }
+        return page(page, more);
+    }
+
+    private static boolean usesIndex(CatsQuery query, Map<String, SecondaryIndex> indexes) {
+        for (CatsQuery.Condition condition : query.conditions) {
+            SecondaryIndex index = indexes.get(condition.field);
+            if (index != null && (index.sorted || condition.op == CatsQuery.Op.EQ)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The ids to check, in id order: the smallest equality match, otherwise the range of the first
+    // condition on a sorted index (with its other bound, if given); null for a wide range.
+    // Called under the read lock.
+    private static IdSet candidates(CatsQuery query, Map<String, SecondaryIndex> indexes, int maxRange) {
+        IdSet smallest = null;
+        for (CatsQuery.Condition condition : query.conditions) {
+            SecondaryIndex index = indexes.get(condition.field);
+            if (index != null && condition.op == CatsQuery.Op.EQ) {
+                IdSet ids = index.equal(condition.value);
+                if (ids == null) {
+                    return new IdSet(); // no record has this value
+                }
+                if (smallest == null || ids.size() < smallest.size()) {
+                    smallest = ids;
+                }
+            }
+        }
+        if (smallest != null) {
+            return smallest;
+        }
+        for (CatsQuery.Condition condition : query.conditions) {
+            SecondaryIndex index = indexes.get(condition.field);
+            if (index == null || !index.sorted) {
+                continue;
+            }
+            Object from = null;
+            Object to = null;
+            boolean fromInclusive = false;
+            boolean toInclusive = false;
+            for (CatsQuery.Condition bound : query.conditions) {
+                if (!bound.field.equals(condition.field)) {
+                    continue;
+                }
+                if (bound.op == CatsQuery.Op.GT || bound.op == CatsQuery.Op.GTE) {
+                    from = bound.value;
+                    fromInclusive = bound.op == CatsQuery.Op.GTE;
+                } else if (bound.op == CatsQuery.Op.LT || bound.op == CatsQuery.Op.LTE) {
+                    to = bound.value;
+                    toInclusive = bound.op == CatsQuery.Op.LTE;
+                }
+            }
+            return index.range(from, fromInclusive, to, toInclusive, maxRange);
+        }
+        return null;
+    }
+
+    // Position of the first cat with an id greater than after, in a list sorted by id
+    private static int indexAfter(List<Map<String, Object>> cats, int after) {
+        int low = 0;
+        int high = cats.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (idOf(cats.get(middle)) <= after) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static Page page(List<Map<String, Object>> data, boolean more) {
+        return new Page(data, more ? String.valueOf(idOf(data.get(data.size() - 1))) : null);
+    }
+
+    // Returnează toate pisicile (în ordinea id-urilor, listă nemodificabilă)
+    public List<Map<String, Object>> getAll() {
+        Snapshot snapshot = all;
+        if (snapshot != null && snapshot.version == version) {
+            return snapshot.cats;
+        }
+        long stamp = lock.readLock();
+        try {
+            List<Map<String, Object>> cats = byId.values();
+            cats.sort(Comparator.comparingInt(CatsDB::idOf));
+            snapshot = new Snapshot(version, Collections.unmodifiableList(cats));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        all = snapshot;
+        return snapshot.cats;
     }
 
     // Returnează o pisică după id
-    public Map<String,Object> get(int id) {
-        return cats.stream()
-                   .filter(c -> ((Double)c.get("id")).intValue() == id)
-                   .findFirst()
-                   .orElse(null);
+    public Map<String, Object> get(int id) {
+        long stamp = lock.tryOptimisticRead();
+        Map<String, Object> cat = byId.get(id);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                cat = byId.get(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return cat;
+    }
+
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = byId.size();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                size = byId.size();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return size;
     }
 
     // Creează o pisică nouă și dă auto-increment la id
-    public Map<String,Object> create(Map<String,Object> cat) {
-        int maxId = cats.stream().mapToInt(c -> ((Double)c.get("id")).intValue()).max().orElse(0);
-        cat.put("id", maxId + 1);
-        cats.add(cat);
-        return cat;
+    public Map<String, Object> create(Map<String, Object> cat) {
+        Map<String, Object> created;
+        long record;
+        long stamp = lock.writeLock();
+        try {
+            int id = ++sequence;
+            created = freeze(cat, id);
+            record = append(encode("put", created), id, null);
+            store(id, created);
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        commit(record);
+        return created;
     }
 
     // Actualizează o pisică după id
-    public Map<String,Object> update(int id, Map<String,Object> data) {
-        Map<String,Object> cat = get(id);
-        if(cat != null) {
+    public Map<String, Object> update(int id, Map<String, Object> data) {
+        Map<String, Object> updated;
+        long record;
+        long stamp = lock.writeLock();
+        try {
+            Map<String, Object> cat = byId.get(id);
+            if (cat == null) {
+                return null;
+            }
             // păstrează id-ul, suprascrie restul
-            data.remove("id");
-            cat.putAll(data);
+            Map<String, Object> changed = new LinkedHashMap<>(cat);
+            changed.putAll(data);
+            updated = freeze(changed, id);
+            record = append(encode("put", updated), id, cat);
+            store(id, updated);
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        return cat;
+        commit(record);
+        return updated;
     }
 
     // Șterge o pisică după id
     public boolean delete(int id) {
-        return cats.removeIf(c -> ((Double)c.get("id")).intValue() == id);
+        long record;
+        long stamp = lock.writeLock();
+        try {
+            Map<String, Object> cat = byId.get(id);
+            if (cat == null) {
+                return false;
+            }
+            record = append(encode("delete", (long) id), id, cat);
+            unstore(id);
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        commit(record);
+        return true;
     }
 
-}
+    // Log records are JSON lines: {"put":{...}} or {"delete":id}. Replaying a record twice gives the same
+    // state, so a log that is older than the snapshot (crash during compaction) can be replayed again.
+    private byte[] encode(String op, Object value) {
+        return (gson.toJson(Collections.singletonMap(op, value)) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Called under the write lock, before the change is applied: a failing log leaves the store unchanged.
+    // previous is what the change replaces, kept until the record is synced.
+    private long append(byte[] change, int id, Map<String, Object> previous) {
+        WriteAheadLog wal = log;
+        if (wal == null) {
+            return 0;
+        }
+        long durable = wal.getDurable();
+        while (!unsynced.isEmpty() && unsynced.peekFirst().record <= durable) {
+            unsynced.pollFirst();
+        }
+        long record = wal.append(change);
+        unsynced.addLast(new Undo(record, id, previous));
+        return record;
+    }
+
+    // Called after the write lock is released, so concurrent writers share one fsync
+    private void commit(long record) {
+        WriteAheadLog wal = log;
+        if (wal == null) {
+            return;
+        }
+        try {
+            wal.await(record);
+        } catch (UncheckedIOException e) {
+            rollback(wal.getDurable());
+            throw e;
+        }
+        if (wal.getRecords() >= compactAfter && compacting.compareAndSet(false, true)) {
+            Thread compaction = new Thread(this::compact, "cats-snapshot");
+            compaction.setDaemon(true);
+            compaction.start();
+        }
+    }
+
+    // Undoes the changes after the last synced record, newest first, so the store matches the log again.
+    // The first writer that sees the failure undoes them all (later changes included, they are not synced
+    // either); the others find nothing left to do.
+    private void rollback(long durable) {
+        long stamp = lock.writeLock();
+        try {
+            boolean changed = false;
+            while (!unsynced.isEmpty() && unsynced.peekLast().record > durable) {
+                Undo undo = unsynced.pollLast();
+                if (undo.previous != null) {
+                    store(undo.id, undo.previous);
+                } else {
+                    unstore(undo.id);
+                }
+                changed = true;
+            }
+            if (changed) {
+                version++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Writes the current records as the new snapshot and drops the log segment it covers
+    private void compact() {
+        try {
+            boolean retry = Files.exists(rotatedLogPath()); // the previous snapshot failed
+            List<Map<String, Object>> cats;
+            long upTo;
+            long stamp = lock.writeLock();
+            try {
+                cats = byId.values();
+                upTo = retry ? log.getAppended() : log.rotate();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            // the snapshot must not hold a change the log may still lose (and the store undo); the fsync
+            // is waited for after the lock is released, so readers and writers go on meanwhile
+            log.await(upTo);
+            writeSnapshot(cats);
+            Files.deleteIfExists(rotatedLogPath());
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("CatsDB: compaction failed: " + e.getMessage());
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    // Applies the lines of a log segment. Only the last line of the current segment may be damaged: that is
+    // a record torn by a crash, never acknowledged, and it is ignored. Damage anywhere else means records
+    // after it were acknowledged and would be lost, so the start fails and the files are left as they are.
+    private int replay(Path path, boolean current) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        int applied = 0;
+        int line = 0;
+        int start = 0;
+        long stamp = lock.writeLock();
+        try {
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start);
+                boolean complete = end >= 0;
+                boolean last = !complete || end + 1 == text.length();
+                line++;
+                if (!complete || !apply(text.substring(start, end))) {
+                    if (current && last) {
+                        break; // torn tail
+                    }
+                    throw new IOException(path + " is damaged at line " + line + "; fix or remove it to start");
+                }
+                start = end + 1;
+                applied++;
+            }
+            version++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return applied;
+    }
+
+    // Applies one log record; false when it cannot be read. Called under the write lock.
+    private boolean apply(String line) {
+        try {
+            Map<String, Object> change = gson.fromJson(line, RECORD_TYPE);
+            Object put = change != null ? change.get("put") : null;
+            Object delete = change != null ? change.get("delete") : null;
+            if (put instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> cat = (Map<String, Object>) put;
+                int id = idOf(cat);
+                store(id, freeze(cat, id));
+                sequence = Math.max(sequence, id);
+                return true;
+            }
+            if (delete instanceof Number) {
+                int id = ((Number) delete).intValue();
+                unstore(id);
+                sequence = Math.max(sequence, id); // ids are not reused
+                return true;
+            }
+            return false;
+        } catch (JsonParseException | ClassCastException | NullPointerException e) {
+            return false;
+        }
+    }
+
+    // Same format as the seed file; written to a temp file and renamed, so a crash leaves the old snapshot
+    private void writeSnapshot(List<Map<String, Object>> cats) throws IOException {
+        cats.sort(Comparator.comparingInt(CatsDB::idOf));
+        Path temp = Paths.get(snapshotPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 64 * 1024);
+            out.write("[\n");
+            for (int i = 0; i < cats.size(); i++) {
+                out.write("  ");
+                gson.toJson(cats.get(i), out);
+                out.write(i + 1 < cats.size() ? ",\n" : "\n");
+            }
+            out.write("]\n");
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, snapshotPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path snapshotPath() {
+        return Paths.get(filePath + ".snapshot");
+    }
+
+    private Path logPath() {
+        return Paths.get(filePath + ".wal");
+    }
+
+    private Path rotatedLogPath() {
+        return Paths.get(filePath + ".wal.1");
+    }
+
+    // Puts the record in the id index and the secondary indexes; called under the write lock
+    private void store(int id, Map<String, Object> cat) {
+        Map<String, Object> previous = byId.put(id, cat);
+        for (SecondaryIndex index : indexes.values()) {
+            if (previous != null) {
+                index.remove(previous, id);
+            }
+            index.add(cat, id);
+        }
+    }
 
+    private void unstore(int id) {
+        Map<String, Object> previous = byId.remove(id);
+        if (previous != null) {
+            for (SecondaryIndex index : indexes.values()) {
+                index.remove(previous, id);
+            }
+        }
+    }
+
+    // Read-only copy with the given id
+    private static Map<String, Object> freeze(Map<String, Object> cat, int id) {
+        Map<String, Object> copy = new LinkedHashMap<>(cat);
+        copy.put("id", (long) id);
+        return Collections.unmodifiableMap(copy);
+    }
+
+    private static int idOf(Map<String, Object> cat) {
+        return ((Number) cat.get("id")).intValue();
+    }
+
+}
@@ -0,0 +1,102 @@
+package fakeDB;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Filters, cursor and page size read from query params:
+//   ?age=3&color=black            equality
+//   ?age.gte=2&age.lt=5           ranges: .gt .gte .lt .lte
+//   ?limit=50&cursor=<next>       paging (the cursor is the last id of the previous page)
+final class CatsQuery {
+
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAX_LIMIT = 1000;
+
+    enum Op { EQ, GT, GTE, LT, LTE }
+
+    static final class Condition {
+        final String field;
+        final Op op;
+        final Object value; // SecondaryIndex.key() form
+
+        Condition(String field, Op op, Object value) {
+            this.field = field;
+            this.op = op;
+            this.value = value;
+        }
+
+        boolean matches(Map<String, Object> record) {
+            Object actual = SecondaryIndex.key(record.get(field));
+            if (actual == null) {
+                return false;
+            }
+            int order = SecondaryIndex.KEY_ORDER.compare(actual, value);
+            switch (op) {
+                case EQ: return order == 0;
+                case GT: return order > 0;
+                case GTE: return order >= 0;
+                case LT: return order < 0;
+                default: return order <= 0;
+            }
+        }
+    }
+
+    final List<Condition> conditions = new ArrayList<>();
+    final int limit;
+    final int after;
+
+    // IllegalArgumentException for a bad limit or cursor
+    CatsQuery(Map<String, String> params) {
+        int limit = DEFAULT_LIMIT;
+        int after = 0;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String name = param.getKey();
+            String value = param.getValue();
+            if (name.equals("limit")) {
+                limit = parsePositive(name, value);
+            } else if (name.equals("cursor")) {
+                after = value.isEmpty() ? 0 : parsePositive(name, value);
+            } else {
+                conditions.add(condition(name, value));
+            }
+        }
+        this.limit = Math.min(limit, MAX_LIMIT);
+        this.after = after;
+    }
+
+    boolean matches(Map<String, Object> record) {
+        for (Condition condition : conditions) {
+            if (!condition.matches(record)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Condition condition(String name, String value) {
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            String suffix = name.substring(dot + 1);
+            for (Op op : Op.values()) {
+                if (op != Op.EQ && op.name().equalsIgnoreCase(suffix)) {
+                    return new Condition(name.substring(0, dot), op, SecondaryIndex.key(value));
+                }
+            }
+        }
+        return new Condition(name, Op.EQ, SecondaryIndex.key(value));
+    }
+
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid " + name + ": " + value);
+    }
+
+}
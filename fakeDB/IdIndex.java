@@ -0,0 +1,142 @@
+package fakeDB;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Open-addressing hash map from a positive int id to a record, without boxing the keys.
+// Not thread-safe: CatsDB writes it under its write lock. Lookups never loop forever and never
+// throw on a table that is being modified, so an optimistic reader can retry after validating.
+final class IdIndex<V> {
+
+    private static final int EMPTY = 0; // ids start at 1
+
+    private static final class Table {
+        final int[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+        }
+    }
+
+    private Table table = new Table(16);
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int id) {
+        Table t = table; // one read: keys and values always belong together
+        int[] keys = t.keys;
+        int mask = keys.length - 1;
+        int slot = mix(id) & mask;
+        for (int probes = 0; probes < keys.length; probes++) {
+            int key = keys[slot];
+            if (key == id) {
+                return (V) t.values[slot];
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    // Returns the previous value
+    @SuppressWarnings("unchecked")
+    V put(int id, V value) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("id must be positive: " + id);
+        }
+        if ((size + 1) * 4 > table.keys.length * 3) {
+            resize(table.keys.length * 2);
+        }
+        int[] keys = table.keys;
+        int mask = keys.length - 1;
+        int slot = mix(id) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        Object previous = table.values[slot];
+        // value first: a reader that sees the key also finds a value (checked again by validate)
+        table.values[slot] = value;
+        if (keys[slot] == EMPTY) {
+            keys[slot] = id;
+            size++;
+        }
+        return (V) previous;
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    @SuppressWarnings("unchecked")
+    V remove(int id) {
+        int[] keys = table.keys;
+        Object[] values = table.values;
+        int mask = keys.length - 1;
+        int slot = mix(id) & mask;
+        while (keys[slot] != id) {
+            if (keys[slot] == EMPTY) {
+                return null;
+            }
+            slot = (slot + 1) & mask;
+        }
+        Object removed = values[slot];
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = mix(keys[next]) & mask;
+            // the entry at next may move into the hole if its home is not between hole and next
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        values[hole] = null;
+        size--;
+        return (V) removed;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != EMPTY) {
+                values.add((V) t.values[i]);
+            }
+        }
+        return values;
+    }
+
+    private void resize(int capacity) {
+        Table old = table;
+        Table bigger = new Table(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < old.keys.length; i++) {
+            int key = old.keys[i];
+            if (key != EMPTY) {
+                int slot = mix(key) & mask;
+                while (bigger.keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                bigger.keys[slot] = key;
+                bigger.values[slot] = old.values[i];
+            }
+        }
+        table = bigger; // published whole, readers see either table
+    }
+
+    // Sequential ids would otherwise fill one run of neighbouring slots
+    private static int mix(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
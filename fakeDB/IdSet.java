@@ -0,0 +1,67 @@
+package fakeDB;
+
+import java.util.Arrays;
+
+// Sorted set of ids in an int array, one per value of a SecondaryIndex. Ids grow, so most
+// inserts are appends; the order lets a query start right after a cursor with a binary search.
+final class IdSet {
+
+    private int[] ids;
+    private int size;
+
+    IdSet() {
+        this.ids = new int[4];
+        this.size = 0;
+    }
+
+    // Takes over an array that is already sorted
+    IdSet(int[] sortedIds) {
+        this.ids = sortedIds;
+        this.size = sortedIds.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int index) {
+        return ids[index];
+    }
+
+    // Position of the first id greater than after
+    int indexAfter(int after) {
+        int index = Arrays.binarySearch(ids, 0, size, after);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    void add(int id) {
+        int index = size > 0 && ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+        if (index >= 0 && index < size) {
+            return; // already there
+        }
+        if (index < 0) {
+            index = -index - 1;
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+        }
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        ids[index] = id;
+        size++;
+    }
+
+    void remove(int id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index >= 0) {
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            size--;
+        }
+    }
+
+    // Copies the ids into target from offset, returns the new offset
+    int copyTo(int[] target, int offset) {
+        System.arraycopy(ids, 0, target, offset, size);
+        return offset + size;
+    }
+
+}
@@ -0,0 +1,114 @@
+package fakeDB;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Index of one record field: value -> ids. A hash index answers equality, a sorted index also
+// answers ranges. Kept up to date by CatsDB under its write lock and read under its read lock.
+final class SecondaryIndex {
+
+    // Numbers first (by value), then text
+    static final Comparator<Object> KEY_ORDER = (a, b) -> {
+        boolean aNumber = a instanceof Number;
+        boolean bNumber = b instanceof Number;
+        if (aNumber && bNumber) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (aNumber != bNumber) {
+            return aNumber ? -1 : 1;
+        }
+        return a.toString().compareTo(b.toString());
+    };
+
+    final String field;
+    final boolean sorted;
+    private final Map<Object, IdSet> entries;
+
+    SecondaryIndex(String field, boolean sorted) {
+        this.field = field;
+        this.sorted = sorted;
+        this.entries = sorted ? new TreeMap<>(KEY_ORDER) : new HashMap<>();
+    }
+
+    void add(Map<String, Object> record, int id) {
+        Object key = key(record.get(field));
+        if (key != null) {
+            entries.computeIfAbsent(key, k -> new IdSet()).add(id);
+        }
+    }
+
+    void remove(Map<String, Object> record, int id) {
+        Object key = key(record.get(field));
+        IdSet ids = key != null ? entries.get(key) : null;
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.size() == 0) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    IdSet equal(Object key) {
+        return entries.get(key);
+    }
+
+    // Ids whose value is between from and to (null = open end), in id order;
+    // null when there are more than maxIds of them (a scan in id order finds a page sooner)
+    IdSet range(Object from, boolean fromInclusive, Object to, boolean toInclusive, int maxIds) {
+        NavigableMap<Object, IdSet> map = (NavigableMap<Object, IdSet>) entries;
+        if (from != null && to != null && KEY_ORDER.compare(from, to) > 0) {
+            return new IdSet();
+        }
+        if (from != null) {
+            map = map.tailMap(from, fromInclusive);
+        }
+        if (to != null) {
+            map = map.headMap(to, toInclusive);
+        }
+        Collection<IdSet> sets = map.values();
+        int count = 0;
+        for (IdSet ids : sets) {
+            count += ids.size();
+            if (count > maxIds) {
+                return null;
+            }
+        }
+        int[] result = new int[count];
+        int offset = 0;
+        for (IdSet ids : sets) {
+            offset = ids.copyTo(result, offset);
+        }
+        Arrays.sort(result);
+        return new IdSet(result);
+    }
+
+    // The form a value is indexed and compared in: integers as Long, other numbers as Double,
+    // text that reads as a number as that number (query params are text), anything else as text
+    static Object key(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            return number == Math.rint(number) && !Double.isInfinite(number) ? (Object) (long) number : (Object) number;
+        }
+        String text = value.toString();
+        if (!text.isEmpty() && (Character.isDigit(text.charAt(0)) || text.charAt(0) == '-')) {
+            try {
+                return key(Double.parseDouble(text));
+            } catch (NumberFormatException e) {
+                // not a number
+            }
+        }
+        return text;
+    }
+
+}
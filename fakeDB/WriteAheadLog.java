@@ -0,0 +1,268 @@
+package fakeDB;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Append-only change log with group commit. A writer appends its record under CatsDB's write lock
+// (so the log has the order of the changes), then waits for the fsync after releasing it: one
+// "cats-wal" thread writes everything appended meanwhile and syncs it once for all the writers.
+// The sync window makes the first writer of a batch wait a little for others to join it.
+final class WriteAheadLog {
+
+    private final Path path;
+    private final Path rotatedPath; // older segment, kept until the snapshot that covers it is written
+    private final long windowNanos;
+    private final int maxBatch;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appendedCondition = lock.newCondition(); // the flusher waits on it
+    private final Condition syncedCondition = lock.newCondition();   // the writers wait on it
+
+    // guarded by lock
+    private FileChannel channel;
+    private byte[] pending = new byte[4096];
+    private byte[] spare = new byte[4096];
+    private int pendingLength = 0;
+    private int pendingRecords = 0;
+    private long appended = 0; // number of the last appended record
+    private volatile long durable = 0; // number of the last synced record (read without the lock by getDurable)
+    private IOException failure;
+    private boolean closed = false;
+    private byte[] retiring; // records of the segment rotate() ended, not written yet; null when none
+    private int retiringLength = 0;
+    private long rotateAfter = 0; // number of the last record of that segment
+
+    private volatile long records = 0; // records in the current segment
+    private volatile long syncs = 0;
+
+    private final Thread flusher;
+
+    WriteAheadLog(Path path, Path rotatedPath, long windowMillis, int maxBatch) throws IOException {
+        this.path = path;
+        this.rotatedPath = rotatedPath;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatch = maxBatch;
+        this.channel = open(path);
+        this.flusher = new Thread(this::run, "cats-wal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    long getRecords() {
+        return records;
+    }
+
+    long getSyncs() {
+        return syncs;
+    }
+
+    // Records up to this number are on disk; after a failure it stays where it was
+    long getDurable() {
+        return durable;
+    }
+
+    // Returns the number to pass to await()
+    long append(byte[] record) {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new UncheckedIOException("write-ahead log failed", failure);
+            }
+            if (closed) {
+                throw new IllegalStateException("write-ahead log closed");
+            }
+            if (pendingLength + record.length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + record.length));
+            }
+            System.arraycopy(record, 0, pending, pendingLength, record.length);
+            pendingLength += record.length;
+            pendingRecords++;
+            records++;
+            // wake the flusher for the first record of a batch and when the batch is full
+            if (pendingRecords == 1 || pendingRecords >= maxBatch) {
+                appendedCondition.signal();
+            }
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until the record is on disk
+    void await(long record) {
+        lock.lock();
+        try {
+            while (durable < record && failure == null) {
+                syncedCondition.awaitUninterruptibly();
+            }
+            if (durable < record) {
+                throw new UncheckedIOException("write-ahead log failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getAppended() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Ends the current segment after the last appended record and returns that record's number: once
+    // await() on it returns, the segment is synced and moved to the rotated path. Only swaps buffers,
+    // so the caller may hold CatsDB's write lock; the flusher does the file work.
+    long rotate() {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new UncheckedIOException("write-ahead log failed", failure);
+            }
+            if (retiring != null) {
+                throw new IllegalStateException("write-ahead log rotation already running");
+            }
+            retiring = pending;
+            retiringLength = pendingLength;
+            rotateAfter = appended;
+            pending = new byte[spare.length];
+            pendingLength = 0;
+            pendingRecords = 0;
+            records = 0;
+            appendedCondition.signal();
+            return rotateAfter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Syncs what was appended and stops the flusher
+    void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            appendedCondition.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void run() {
+        while (true) {
+            byte[] batch;
+            int length;
+            long upTo;
+            boolean rotation;
+            FileChannel target;
+            lock.lock();
+            try {
+                while (pendingLength == 0 && retiring == null && !closed) {
+                    appendedCondition.awaitUninterruptibly();
+                }
+                if (pendingLength == 0 && retiring == null) {
+                    return; // closed and everything synced
+                }
+                if (failure != null) {
+                    // nothing is written after a hole: the records of the failed batch are never synced,
+                    // so neither are the ones after them
+                    pendingLength = 0;
+                    pendingRecords = 0;
+                    retiring = null;
+                    syncedCondition.signalAll();
+                    continue;
+                }
+                rotation = retiring != null;
+                if (rotation) {
+                    // the end of the old segment goes first, everything appended since belongs to the new one
+                    batch = retiring;
+                    length = retiringLength;
+                    upTo = rotateAfter;
+                    retiring = null;
+                } else {
+                    // give other writers the window to join this fsync
+                    long deadline = System.nanoTime() + windowNanos;
+                    long remaining;
+                    while (!closed && retiring == null && pendingRecords < maxBatch
+                            && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            appendedCondition.awaitNanos(remaining);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    if (retiring != null) {
+                        continue; // rotated while waiting: the pending records moved to the old segment
+                    }
+                    batch = pending;
+                    length = pendingLength;
+                    upTo = appended;
+                    pending = spare;
+                    pendingLength = 0;
+                    pendingRecords = 0;
+                }
+                target = channel;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            FileChannel next = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch, 0, length);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                target.force(false);
+                syncs++;
+                if (rotation) {
+                    target.close();
+                    Files.move(path, rotatedPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    next = open(path);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if (next != null) {
+                    channel = next;
+                }
+                if (!rotation) {
+                    spare = batch;
+                }
+                if (error == null && failure == null) {
+                    durable = upTo;
+                } else if (failure == null) {
+                    failure = error;
+                }
+                syncedCondition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+}
@@ -1,10 +1,12 @@
 package program;
 
+import java.io.UncheckedIOException;
 import java.util.Map;
 
 import server.HttpHandler;
 import server.HttpServer;
 import server.JsonParser;
+import server.ResponseCache;
 import server.Router;
 import fakeDB.CatsDB;
 
@@ -13,7 +15,10 @@ public class Main {
   public static void main(String[] args) {
 
     HttpServer server = new HttpServer(true);
-    CatsDB db = new CatsDB("fakeDB/cats.json");
+    CatsDB db = new CatsDB("fakeDB/cats.json")
+        .sortedIndex("age") // ?age=3, ?age.gte=2&age.lt=5
+        .index("name")      // ?name=Pufu
+        .persist();         // changes go to fakeDB/cats.json.wal
 
     server.use(new JsonParser());
     server.use(UserMiddleware.test());
@@ -25,19 +30,38 @@ public class Main {
 
     // --------------------------------- Cats Routes ------------------
     Router catsRouter = new Router();
+    ResponseCache catsCache = new ResponseCache().ttl(5000); // the list is serialized once per 5 s
 
-    catsRouter.get("/", UserMiddleware.tokenAuth(), (HttpHandler) (req, res) -> {
-      res.status(200).json(Map.of("data", db.getAll()));
+    // /cats?age=3&limit=20 -> {"data": [...], "next": "17"}; /cats?age=3&limit=20&cursor=17 for the next page
+    catsRouter.get("/", UserMiddleware.tokenAuth(), catsCache, (HttpHandler) (req, res) -> {
+      try {
+        res.status(200).json(db.find(req.getQueryParams()));
+      } catch (IllegalArgumentException e) {
+        res.status(400).json(Map.of("message", e.getMessage()));
+      }
     });
 
-    catsRouter.post("/", (req, res) -> {
+    // every cat as one JSON array, serialized and sent a chunk at a time
+    catsRouter.get("/export", UserMiddleware.tokenAuth(), (HttpHandler) (req, res) -> {
+      res.status(200).jsonStream(db.getAll());
+    });
+
+    catsRouter.post("/", catsCache.invalidating(), (HttpHandler) (req, res) -> {
       try {
         Map<String, Object> body = req.getParsedBody();
-        int id = req.getIntFromBody("id");
         String name = (String) body.get("name");
+        if (name == null) {
+          res.status(400).json(Map.of("message", "Invalid body"));
+          return;
+        }
+        Map<String, Object> cat = db.create(body);
         res.status(201).json(Map.of(
             "message", "Cat added",
-            "name", name));
+            "name", name,
+            "id", cat.get("id")));
+      } catch (UncheckedIOException e) {
+        // the change log failed: the cat was not saved (and is not kept in memory either)
+        res.status(500).json(Map.of("message", "Cannot save the cat"));
       } catch (Exception e) {
         res.status(400).json(Map.of("message", "Invalid body"));
       }
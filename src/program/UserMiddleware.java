@@ -1,14 +1,19 @@
 package program;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import server.Middleware;
 
 public class UserMiddleware {
 
   public static Middleware test() {
+    AtomicBoolean used = new AtomicBoolean();
     return (req, res, next) -> {
-      System.out.println("Global middleware used!");
+      // printed once: a line per request would make every worker wait for stdout
+      if (used.compareAndSet(false, true)) {
+        System.out.println("Global middleware used!");
+      }
       next.next();
     };
   }
@@ -0,0 +1,456 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Access log for HttpServer.setAccessLog(...), written by a background thread.
+// Request threads only put a small entry in a bounded lock-free ring; the writer formats
+// and writes them in batches. When the ring is full the entry is dropped (getDropped())
+// instead of making the request wait for the disk.
+//
+//   server.setAccessLog(new AccessLog("logs/access.log").format(AccessLog.Format.COMBINED));
+public class AccessLog {
+
+  public enum Format {
+    COMMON, // Apache common log format
+    COMBINED, // common + referer and user agent
+    JSON // one object per line
+  }
+
+  private static final long IDLE_PARK_NANOS = 50_000_000L; // writer wakes up at least every 50 ms
+  private static final int BATCH_SIZE = 512;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  private static final DateTimeFormatter CLF_TIME =
+      DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+
+  private final File file; // null: standard output
+  private Format format = Format.COMMON;
+  private long maxFileSize = 10 * 1024 * 1024;
+  private int maxFiles = 5;
+  private ZoneId zone = ZoneId.systemDefault();
+
+  // ring of entries: producers claim a slot with a CAS on tail, the writer is the only consumer
+  private AtomicReferenceArray<Object> ring = new AtomicReferenceArray<>(8192);
+  private int mask = 8191;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head = 0;
+
+  private final LongAdder written = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private volatile Thread writer;
+  private volatile boolean closed = false;
+
+  // writer state, only touched by the writer thread
+  private OutputStream out;
+  private long fileSize;
+  private final StringBuilder line = new StringBuilder(256);
+  private byte[] encoded = new byte[512];
+  private long cachedSecond = -1; // timestamps are formatted once per second
+  private String cachedTime;
+  private long cachedIsoSecond = -1;
+  private String cachedIsoTime; // "2026-10-18T13:07:47."
+
+  // Entries go to standard output
+  public AccessLog() {
+    this.file = null;
+  }
+
+  public AccessLog(String path) {
+    this.file = new File(path);
+  }
+
+  public AccessLog format(Format format) {
+    this.format = format;
+    return this;
+  }
+
+  // The file is renamed to path.1 (path.1 to path.2, ...) once it grows past maxBytes;
+  // only maxFiles old files are kept. maxBytes <= 0 disables rotation.
+  public AccessLog rotate(long maxBytes, int maxFiles) {
+    if (maxFiles < 1) {
+      throw new IllegalArgumentException("maxFiles must be at least 1");
+    }
+    this.maxFileSize = maxBytes;
+    this.maxFiles = maxFiles;
+    return this;
+  }
+
+  // Entries that may wait for the writer (rounded up to a power of two); set before use
+  public AccessLog capacity(int entries) {
+    if (entries < 2) {
+      throw new IllegalArgumentException("capacity must be at least 2");
+    }
+    if (writer != null) {
+      throw new IllegalStateException("capacity must be set before the log is started");
+    }
+    int size = Integer.highestOneBit(entries - 1) << 1;
+    this.ring = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    return this;
+  }
+
+  // Time zone of COMMON / COMBINED timestamps
+  public AccessLog zone(ZoneId zone) {
+    this.zone = zone;
+    return this;
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  // Lines written so far
+  public long getWritten() {
+    return written.sum();
+  }
+
+  // Entries lost because the writer could not keep up
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  // Entries waiting for the writer
+  public int getPending() {
+    return (int) Math.max(0, tail.get() - head);
+  }
+
+  synchronized void start() {
+    if (writer != null || closed) {
+      return;
+    }
+    Thread thread = new Thread(this::run, "access-log");
+    thread.setDaemon(true);
+    writer = thread;
+    thread.start();
+  }
+
+  // Writes what is still queued and closes the file
+  public void close() {
+    Thread thread;
+    synchronized (this) {
+      closed = true;
+      thread = writer;
+    }
+    if (thread == null) {
+      return;
+    }
+    LockSupport.unpark(thread);
+    try {
+      thread.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Called by HttpServer once the response is known; never blocks
+  void log(HttpRequest req, int status, long bodyBytes, long nanos) {
+    offer(new Entry(System.currentTimeMillis(), req.getRemoteAddress(), req.getMethod(), req.getPath(),
+        req.getVersion(), status, bodyBytes, nanos, req.getHeader("Referer"), req.getHeader("User-Agent")));
+  }
+
+  // A line written as it is (debug output)
+  void print(String text) {
+    offer(text);
+  }
+
+  private void offer(Object entry) {
+    if (closed) {
+      dropped.increment();
+      return;
+    }
+    int capacity = mask + 1;
+    while (true) {
+      long slot = tail.get();
+      long used = slot - head;
+      if (used >= capacity) {
+        dropped.increment();
+        return;
+      }
+      if (tail.compareAndSet(slot, slot + 1)) {
+        ring.lazySet((int) (slot & mask), entry);
+        if (used == capacity / 2) {
+          // the ring is filling up: do not wait for the writer's next wake-up
+          Thread thread = writer;
+          if (thread != null) {
+            LockSupport.unpark(thread);
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  // -------------------------------------------------------
+  // Writer thread
+
+  private void run() {
+    try {
+      open();
+    } catch (IOException e) {
+      System.err.println("[AccessLog] Cannot open " + file + ": " + e.getMessage());
+      closed = true;
+      return;
+    }
+    while (true) {
+      boolean stopping = closed;
+      int count = drain();
+      if (count == 0) {
+        if (stopping) {
+          break;
+        }
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+    try {
+      if (file != null) {
+        out.close();
+      } else {
+        out.flush();
+      }
+    } catch (IOException e) {
+      System.err.println("[AccessLog] " + e.getMessage());
+    }
+  }
+
+  // Writes up to BATCH_SIZE published entries and flushes them together
+  private int drain() {
+    long position = head;
+    int count = 0;
+    try {
+      while (count < BATCH_SIZE) {
+        int index = (int) (position & mask);
+        Object entry = ring.get(index);
+        if (entry == null) {
+          break; // nothing more, or a producer has claimed the slot but not filled it yet
+        }
+        ring.lazySet(index, null);
+        position++;
+        head = position;
+        count++;
+        write(entry);
+      }
+      if (count > 0) {
+        out.flush();
+        written.add(count);
+      }
+    } catch (IOException e) {
+      System.err.println("[AccessLog] " + e.getMessage());
+    }
+    return count;
+  }
+
+  private void write(Object entry) throws IOException {
+    line.setLength(0);
+    if (entry instanceof Entry) {
+      Entry e = (Entry) entry;
+      if (format == Format.JSON) {
+        json(e);
+      } else {
+        common(e);
+      }
+    } else {
+      line.append(entry);
+    }
+    line.append('\n');
+    int length = encode();
+    if (file != null && maxFileSize > 0 && fileSize > 0 && fileSize + length > maxFileSize) {
+      rotateNow();
+    }
+    out.write(encoded, 0, length);
+    fileSize += length;
+  }
+
+  // line as UTF-8 into the reusable encoded array; ASCII (the usual case) is copied byte by byte
+  private int encode() {
+    int length = line.length();
+    if (encoded.length < length) {
+      encoded = new byte[Math.max(length, encoded.length * 2)];
+    }
+    for (int i = 0; i < length; i++) {
+      char c = line.charAt(i);
+      if (c >= 0x80) {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (encoded.length < bytes.length) {
+          encoded = new byte[bytes.length];
+        }
+        System.arraycopy(bytes, 0, encoded, 0, bytes.length);
+        return bytes.length;
+      }
+      encoded[i] = (byte) c;
+    }
+    return length;
+  }
+
+  private void open() throws IOException {
+    if (file == null) {
+      out = new BufferedOutputStream(System.out, WRITE_BUFFER_SIZE); // one System.out write per batch
+      return;
+    }
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+    out = new BufferedOutputStream(new FileOutputStream(file, true), WRITE_BUFFER_SIZE);
+    fileSize = file.length();
+  }
+
+  // path.(n-1) -> path.n, ..., path -> path.1
+  private void rotateNow() throws IOException {
+    out.close();
+    String path = file.getPath();
+    new File(path + "." + maxFiles).delete();
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      File older = new File(path + "." + i);
+      if (older.exists()) {
+        older.renameTo(new File(path + "." + (i + 1)));
+      }
+    }
+    file.renameTo(new File(path + ".1"));
+    out = new BufferedOutputStream(new FileOutputStream(file, true), WRITE_BUFFER_SIZE);
+    fileSize = 0;
+  }
+
+  // 127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /cats HTTP/1.1" 200 2326 "referer" "agent"
+  private void common(Entry e) {
+    line.append(e.remote != null ? e.remote : "-").append(" - - [").append(clfTime(e.time)).append("] \"");
+    quoted(e.method);
+    line.append(' ');
+    quoted(e.path);
+    line.append(' ');
+    quoted(e.version);
+    line.append("\" ").append(e.status).append(' ');
+    if (e.bytes > 0) {
+      line.append(e.bytes);
+    } else {
+      line.append('-');
+    }
+    if (format == Format.COMBINED) {
+      line.append(" \"");
+      quoted(e.referer != null ? e.referer : "-");
+      line.append("\" \"");
+      quoted(e.userAgent != null ? e.userAgent : "-");
+      line.append('"');
+    }
+  }
+
+  private void json(Entry e) {
+    line.append("{\"time\":\"").append(isoTime(e.time));
+    digits(e.time % 1000, 3);
+    line.append("Z\"");
+    jsonField("remote", e.remote);
+    jsonField("method", e.method);
+    jsonField("path", e.path);
+    jsonField("version", e.version);
+    line.append(",\"status\":").append(e.status);
+    line.append(",\"bytes\":").append(e.bytes);
+    long micros = e.nanos / 1000;
+    line.append(",\"duration_ms\":").append(micros / 1000).append('.');
+    digits(micros % 1000, 3);
+    jsonField("referer", e.referer);
+    jsonField("user_agent", e.userAgent);
+    line.append('}');
+  }
+
+  private String clfTime(long millis) {
+    long second = millis / 1000;
+    if (second != cachedSecond) {
+      cachedSecond = second;
+      cachedTime = CLF_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochSecond(second), zone));
+    }
+    return cachedTime;
+  }
+
+  // UTC date and time up to the seconds, the milliseconds are appended by json()
+  private String isoTime(long millis) {
+    long second = millis / 1000;
+    if (second != cachedIsoSecond) {
+      cachedIsoSecond = second;
+      cachedIsoTime = Instant.ofEpochSecond(second).toString().replace("Z", ".");
+    }
+    return cachedIsoTime;
+  }
+
+  // value with leading zeros
+  private void digits(long value, int width) {
+    for (long limit = 10; width > 1; width--, limit *= 10) {
+      if (value < limit) {
+        line.append('0');
+      }
+    }
+    line.append(value);
+  }
+
+  // Inside "..." of a common log line: quote, backslash and control characters are escaped
+  private void quoted(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c < 0x20 || c == 0x7f) {
+        line.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+      } else {
+        line.append(c);
+      }
+    }
+  }
+
+  private void jsonField(String name, String value) {
+    if (value == null) {
+      return;
+    }
+    line.append(",\"").append(name).append("\":\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c < 0x20) {
+        line.append(String.format("\\u%04x", (int) c));
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+
+  // What the writer needs from a finished request, copied so the request can be collected
+  private static final class Entry {
+    final long time;
+    final String remote;
+    final String method;
+    final String path;
+    final String version;
+    final int status;
+    final long bytes;
+    final long nanos;
+    final String referer;
+    final String userAgent;
+
+    Entry(long time, String remote, String method, String path, String version, int status, long bytes,
+        long nanos, String referer, String userAgent) {
+      this.time = time;
+      this.remote = remote;
+      this.method = method;
+      this.path = path;
+      this.version = version;
+      this.status = status;
+      this.bytes = bytes;
+      this.nanos = nanos;
+      this.referer = referer;
+      this.userAgent = userAgent;
+    }
+  }
+
+}
@@ -0,0 +1,185 @@
+package server;
+
+// Message framing of a request body: Content-Length or "Transfer-Encoding: chunked".
+// Works in place on the connection buffer, shared by the blocking parser and the NIO decoder:
+//
+//   pos = decoder.skipFraming(buf, pos, limit);   // chunk sizes, CRLFs, trailers
+//   int n = (int) Math.min(limit - pos, decoder.remaining());
+//   ... buf[pos, pos + n) is body data ...
+//   decoder.consumed(n);
+class BodyDecoder {
+
+  private static final int MAX_LINE_SIZE = 4096; // chunk size line / trailer line
+
+  private static final int DATA = 0;
+  private static final int SIZE = 1; // reading the hex chunk size
+  private static final int EXTENSION = 2; // ";name=value" after the size, ignored
+  private static final int SIZE_LF = 3;
+  private static final int DATA_CR = 4; // CRLF closing a chunk
+  private static final int DATA_LF = 5;
+  private static final int TRAILER = 6; // trailer lines after the last chunk, ignored
+  private static final int TRAILER_LF = 7;
+  private static final int DONE = 8;
+
+  private final boolean chunked;
+  private final long contentLength; // -1 when chunked
+  private int state;
+  private long remaining; // data bytes left in the current chunk / body
+  private long chunkSize;
+  private int lineLength;
+
+  private BodyDecoder(boolean chunked, long contentLength) {
+    this.chunked = chunked;
+    this.contentLength = chunked ? -1 : contentLength;
+    this.remaining = contentLength;
+    this.state = chunked ? SIZE : (contentLength == 0 ? DONE : DATA);
+  }
+
+  static BodyDecoder contentLength(long length) {
+    return new BodyDecoder(false, length);
+  }
+
+  static BodyDecoder chunked() {
+    return new BodyDecoder(true, 0);
+  }
+
+  // Framing declared by the request head, null when it has no body
+  static BodyDecoder forRequest(HttpRequest req) throws IllegalArgumentException {
+    String transferEncoding = req.getHeader("Transfer-Encoding");
+    String lengthHeader = req.getHeader("Content-Length");
+    if (transferEncoding != null) {
+      // a proxy in front may frame the body by the other header: refused, not resolved (RFC 7230 3.3.3)
+      if (lengthHeader != null) {
+        throw new IllegalArgumentException("Both Transfer-Encoding and Content-Length");
+      }
+      // only plain "chunked": with "gzip, chunked" the body would reach the route still compressed
+      if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+        throw new UnsupportedTransferEncodingException(transferEncoding);
+      }
+      return chunked();
+    }
+    if (lengthHeader == null) {
+      return null;
+    }
+    long length = parseLength(lengthHeader.trim());
+    if (length < 0) {
+      throw new IllegalArgumentException("Invalid Content-Length: " + lengthHeader);
+    }
+    return length == 0 ? null : contentLength(length);
+  }
+
+  // 1*DIGIT only: Long.parseLong would also take "+5" (RFC 7230 3.3.2); -1 when invalid
+  private static long parseLength(String value) {
+    if (value.isEmpty() || value.length() > 18) {
+      return -1;
+    }
+    long length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      length = length * 10 + (c - '0');
+    }
+    return length;
+  }
+
+  boolean isChunked() {
+    return chunked;
+  }
+
+  long contentLength() {
+    return contentLength;
+  }
+
+  boolean isDone() {
+    return state == DONE;
+  }
+
+  // Data bytes that may be taken right now (0 while framing is pending)
+  long remaining() {
+    return state == DATA ? remaining : 0;
+  }
+
+  void consumed(int count) {
+    remaining -= count;
+    if (remaining == 0) {
+      state = chunked ? DATA_CR : DONE;
+    }
+  }
+
+  // Consumes framing bytes in [pos, limit) until data, the end of the body or the end of the input
+  int skipFraming(byte[] b, int pos, int limit) throws IllegalArgumentException {
+    while (pos < limit && state != DATA && state != DONE) {
+      byte c = b[pos++];
+      switch (state) {
+        case SIZE:
+          int digit = Character.digit(c, 16);
+          if (digit != -1) {
+            if (chunkSize > (Long.MAX_VALUE >> 4)) {
+              throw new IllegalArgumentException("Chunk size is too big");
+            }
+            chunkSize = (chunkSize << 4) | digit;
+            lineLength++;
+          } else if (lineLength == 0) {
+            throw new IllegalArgumentException("Invalid chunk size");
+          } else if (c == '\r') {
+            state = SIZE_LF;
+          } else if (c == ';' || c == ' ' || c == '\t') {
+            state = EXTENSION;
+          } else {
+            throw new IllegalArgumentException("Invalid chunk size");
+          }
+          break;
+        case EXTENSION:
+          if (c == '\r') {
+            state = SIZE_LF;
+          } else if (++lineLength > MAX_LINE_SIZE) {
+            throw new IllegalArgumentException("Chunk extension is too long");
+          }
+          break;
+        case SIZE_LF:
+          expect(c, '\n');
+          lineLength = 0;
+          if (chunkSize == 0) {
+            state = TRAILER;
+          } else {
+            remaining = chunkSize;
+            chunkSize = 0;
+            state = DATA;
+          }
+          break;
+        case DATA_CR:
+          expect(c, '\r');
+          state = DATA_LF;
+          break;
+        case DATA_LF:
+          expect(c, '\n');
+          state = SIZE;
+          break;
+        case TRAILER:
+          if (c == '\r') {
+            state = TRAILER_LF;
+          } else if (++lineLength > MAX_LINE_SIZE) {
+            throw new IllegalArgumentException("Trailer is too long");
+          }
+          break;
+        case TRAILER_LF:
+          expect(c, '\n');
+          state = lineLength == 0 ? DONE : TRAILER; // an empty line ends the trailers
+          lineLength = 0;
+          break;
+        default:
+          throw new IllegalStateException("Unexpected state " + state);
+      }
+    }
+    return pos;
+  }
+
+  private static void expect(byte actual, char expected) {
+    if (actual != expected) {
+      throw new IllegalArgumentException("Malformed chunked body");
+    }
+  }
+
+}
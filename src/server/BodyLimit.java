@@ -0,0 +1,38 @@
+package server;
+
+import java.util.Map;
+
+// Per-route request body limit, overriding HttpServer.setMaxBodySize():
+//   server.post("/upload", BodyLimit.of(512L * 1024 * 1024), (HttpHandler) (req, res) -> ...);
+//   server.use("/files", BodyLimit.of(64L * 1024 * 1024));
+// The limit is applied as soon as the route is matched, before other middlewares read the body.
+public class BodyLimit implements Middleware {
+
+  private final long maxBytes;
+
+  private BodyLimit(long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative");
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  public static BodyLimit of(long maxBytes) {
+    return new BodyLimit(maxBytes);
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  @Override
+  public void handle(HttpRequest req, HttpResponse res, Next next) {
+    req.setMaxBodySize(maxBytes);
+    if (req.getContentLength() > maxBytes) {
+      res.status(413).json(Map.of("message", "Payload Too Large"));
+      return;
+    }
+    next.next();
+  }
+
+}
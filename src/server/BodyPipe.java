@@ -0,0 +1,124 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.function.IntConsumer;
+
+// Request body handed from an NIO event loop to the worker running the handler.
+// The loop offers decoded body bytes and stops reading the socket while more than
+// CAPACITY bytes wait here; the worker resumes it once it has caught up.
+final class BodyPipe extends RequestBody {
+
+  static final int CAPACITY = 256 * 1024;
+
+  private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+  private int headOffset = 0; // bytes of chunks.peek() already read
+  private int buffered = 0;
+  private boolean finished = false;
+  private Exception failure; // IOException, or IllegalArgumentException for a malformed body
+  private boolean paused = false;
+
+  private final long timeoutMillis;
+  private final Runnable resume; // runs on the worker, must hand over to the loop
+  private Runnable sendContinue; // "100 Continue" before the first read, when the client asked for it
+  private IntConsumer consumed; // told how many bytes the worker read (HTTP/2 flow control)
+
+  BodyPipe(long contentLength, long limit, long timeoutMillis, Runnable resume, Runnable sendContinue) {
+    super(contentLength, limit);
+    this.timeoutMillis = timeoutMillis;
+    this.resume = resume;
+    this.sendContinue = sendContinue;
+  }
+
+  // Loop side: copies the bytes, returns false when the loop should stop reading for now
+  synchronized boolean offer(byte[] b, int off, int len) {
+    byte[] chunk = new byte[len];
+    System.arraycopy(b, off, chunk, 0, len);
+    chunks.add(chunk);
+    buffered += len;
+    notifyAll();
+    if (buffered >= CAPACITY) {
+      paused = true;
+      return false;
+    }
+    return true;
+  }
+
+  // Runs on the worker after each read, must hand over to the loop
+  void onConsumed(IntConsumer consumed) {
+    this.consumed = consumed;
+  }
+
+  synchronized void finish() {
+    finished = true;
+    notifyAll();
+  }
+
+  synchronized void fail(Exception e) {
+    if (!finished) {
+      failure = e;
+      notifyAll();
+    }
+  }
+
+  @Override
+  protected int readBody(byte[] b, int off, int len) throws IOException {
+    Runnable continueTask;
+    synchronized (this) {
+      continueTask = chunks.isEmpty() && !finished ? sendContinue : null;
+      sendContinue = null;
+    }
+    if (continueTask != null) {
+      continueTask.run();
+    }
+
+    boolean wakeLoop = false;
+    int count;
+    synchronized (this) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (chunks.isEmpty()) {
+        if (failure instanceof IOException) {
+          throw (IOException) failure;
+        }
+        if (failure != null) {
+          throw (RuntimeException) failure;
+        }
+        if (finished) {
+          return -1;
+        }
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+          throw new SocketTimeoutException("Timed out waiting for the request body");
+        }
+        try {
+          wait(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while reading the request body", e);
+        }
+      }
+      byte[] head = chunks.peek();
+      count = Math.min(len, head.length - headOffset);
+      System.arraycopy(head, headOffset, b, off, count);
+      headOffset += count;
+      if (headOffset == head.length) {
+        chunks.poll();
+        headOffset = 0;
+      }
+      buffered -= count;
+      if (paused && buffered < CAPACITY / 2) {
+        paused = false;
+        wakeLoop = true;
+      }
+    }
+    if (wakeLoop) {
+      resume.run();
+    }
+    if (consumed != null) {
+      consumed.accept(count);
+    }
+    return count;
+  }
+
+}
@@ -0,0 +1,283 @@
+package server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Accept-Encoding negotiation (gzip / deflate) for HttpServer.setCompression(...).
+// Only bodies above minSize with an allowed content type are compressed. Streamed bodies
+// (res.write / getOutputStream / jsonStream) are compressed chunk by chunk once their head is sent.
+public class Compression {
+
+  public static final String GZIP = "gzip";
+  public static final String DEFLATE = "deflate";
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  private static final String DEFAULT_CONTENT_TYPE = "text/plain; charset=UTF-8"; // sent by HttpResponse without one
+  // Scratch buffer bodies are compressed into; the result is copied out at its exact size
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+  private static final int SCRATCH_LIMIT = 256 * 1024;
+
+  private int minSize = 1024;
+  private int level = Deflater.DEFAULT_COMPRESSION;
+  private final List<String> contentTypes = new ArrayList<>(List.of(
+      "text/", "application/json", "application/javascript", "application/xml", "image/svg+xml"));
+
+  private final LongAdder responses = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder cpuNanos = new LongAdder();
+
+  // Bodies smaller than this are sent as they are
+  public Compression minSize(int bytes) {
+    this.minSize = bytes;
+    return this;
+  }
+
+  // 1 (fastest) .. 9 (smallest)
+  public Compression level(int level) {
+    this.level = level;
+    return this;
+  }
+
+  // Content type prefixes that may be compressed (e.g. "text/", "application/json")
+  public Compression allow(String contentTypePrefix) {
+    contentTypes.add(contentTypePrefix);
+    return this;
+  }
+
+  public int getMinSize() {
+    return minSize;
+  }
+
+  public long getCompressedResponses() {
+    return responses.sum();
+  }
+
+  public long getBytesSaved() {
+    return bytesIn.sum() - bytesOut.sum();
+  }
+
+  public double getCompressionRatio() {
+    long in = bytesIn.sum();
+    return in == 0 ? 1 : (double) bytesOut.sum() / in;
+  }
+
+  public long getAverageCpuNanos() {
+    long count = responses.sum();
+    return count == 0 ? 0 : cpuNanos.sum() / count;
+  }
+
+  public boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    for (String allowed : contentTypes) {
+      if (contentType.startsWith(allowed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Best encoding the client accepts, or null for identity. gzip wins ties.
+  public static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    double gzip = 0;
+    double deflate = 0;
+    double any = 0;
+    boolean gzipListed = false;
+    boolean deflateListed = false;
+    for (String part : acceptEncoding.split(",")) {
+      String[] tokens = part.trim().split(";");
+      String coding = tokens[0].trim().toLowerCase();
+      double q = 1;
+      for (int i = 1; i < tokens.length; i++) {
+        String param = tokens[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            q = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+      if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+        gzip = q;
+        gzipListed = true;
+      } else if (coding.equals(DEFLATE)) {
+        deflate = q;
+        deflateListed = true;
+      } else if (coding.equals("*")) {
+        any = q;
+      }
+    }
+    // "*" stands for every coding that is not listed by name
+    if (!gzipListed) {
+      gzip = any;
+    }
+    if (!deflateListed) {
+      deflate = any;
+    }
+    if (gzip > 0 && gzip >= deflate) {
+      return GZIP;
+    }
+    return deflate > 0 ? DEFLATE : null;
+  }
+
+  // Compresses the response body in place when the request and the content allow it
+  void apply(HttpRequest req, HttpResponse res) {
+    if (res.isCommitted()) {
+      return; // a streamed body, compressed while it was written
+    }
+    byte[] raw = res.getRawBody();
+    String body = raw == null ? res.getBody() : null;
+    int size = raw != null ? raw.length : (body != null ? body.length() : 0);
+    String encoding = choose(res, req.getHeader("Accept-Encoding"), size);
+    if (encoding == null) {
+      return;
+    }
+
+    long start = cpuTime();
+    HttpResponse.ByteWriter out = new HttpResponse.ByteWriter(SCRATCH.get());
+    CountingOutputStream counter;
+    try {
+      counter = new CountingOutputStream(open(out, encoding, false));
+    } catch (IOException e) {
+      return;
+    }
+    try (OutputStream compressor = counter) {
+      if (raw != null) {
+        compressor.write(raw);
+      } else {
+        // the String is encoded straight into the compressor, the plain UTF-8 bytes are never buffered
+        Writer writer = new OutputStreamWriter(compressor, StandardCharsets.UTF_8);
+        writer.write(body);
+        writer.flush();
+      }
+    } catch (IOException e) {
+      return;
+    }
+    byte[] compressed = detach(out);
+    record(counter.count, compressed.length, cpuTime() - start);
+
+    res.send(compressed, contentTypeOf(res));
+    res.removeHeader("Content-Length"); // set by the handler for the plain body
+    res.addHeader("Content-Encoding", encoding);
+  }
+
+  // Encoding for this response, or null to send it as it is. size < 0: not known yet (streamed body)
+  String choose(HttpResponse res, String acceptEncoding, long size) {
+    if (res.getHeaders().containsKey("Content-Encoding") || res.getFileBody() != null) {
+      return null;
+    }
+    int status = res.getStatusCode();
+    if (status < 200 || status == 204 || status == 304) {
+      return null;
+    }
+    if (!isCompressible(contentTypeOf(res)) || (size >= 0 && size < minSize)) {
+      return null;
+    }
+    varyOnAcceptEncoding(res);
+    return negotiate(acceptEncoding);
+  }
+
+  // Adds Accept-Encoding to the Vary the handler may have set ("Authorization" -> "Authorization, Accept-Encoding")
+  static void varyOnAcceptEncoding(HttpResponse res) {
+    String vary = res.getHeaders().get("Vary");
+    if (vary == null) {
+      res.addHeader("Vary", "Accept-Encoding");
+    } else if (!vary.trim().equals("*") && !HttpServer.hasToken(vary, "Accept-Encoding")) {
+      res.addHeader("Vary", vary + ", Accept-Encoding");
+    }
+  }
+
+  byte[] compress(byte[] data, String encoding) {
+    HttpResponse.ByteWriter out = new HttpResponse.ByteWriter(SCRATCH.get());
+    try (OutputStream compressor = open(out, encoding, false)) {
+      compressor.write(data);
+    } catch (IOException e) {
+      throw new IllegalStateException("In-memory compression failed", e);
+    }
+    return detach(out);
+  }
+
+  private static byte[] detach(HttpResponse.ByteWriter out) {
+    byte[] compressed = Arrays.copyOf(out.buffer, out.length);
+    if (out.buffer.length <= SCRATCH_LIMIT) {
+      SCRATCH.set(out.buffer);
+    }
+    return compressed;
+  }
+
+  private static String contentTypeOf(HttpResponse res) {
+    String contentType = res.getHeaders().get("Content-Type");
+    return contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+  }
+
+  // Wraps a stream with the compressor for the negotiated encoding;
+  // with syncFlush, flush() sends everything compressed so far (streamed bodies)
+  OutputStream open(OutputStream out, String encoding, boolean syncFlush) throws IOException {
+    if (GZIP.equals(encoding)) {
+      return new GZIPOutputStream(out, 8192, syncFlush) {
+        {
+          def.setLevel(level);
+        }
+      };
+    }
+    return new DeflaterOutputStream(out, new Deflater(level), 8192, syncFlush) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        def.end();
+      }
+    };
+  }
+
+  void record(long originalBytes, long compressedBytes, long nanos) {
+    responses.increment();
+    bytesIn.add(originalBytes);
+    bytesOut.add(compressedBytes);
+    cpuNanos.add(nanos);
+  }
+
+  static long cpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  // Counts the uncompressed bytes flowing into the compressor
+  private static final class CountingOutputStream extends FilterOutputStream {
+    long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+}
@@ -0,0 +1,9 @@
+package server;
+
+// Connection engine used by HttpServer, chosen at construction time
+public enum Engine {
+  // One worker thread per connection, blocking socket I/O
+  BLOCKING,
+  // Selector based event loops for accept/read/write, handlers on the worker pool
+  NIO
+}
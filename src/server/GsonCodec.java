@@ -0,0 +1,137 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Type;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.ToNumberPolicy;
+
+// JsonCodec backed by one Gson instance. Gson is thread-safe and caches its reflective
+// type adapters, so sharing it avoids building them again for every response.
+public class GsonCodec implements JsonCodec {
+
+  // Untyped numbers (Map / Object fields) become Long when they are integers, Double otherwise
+  private static final GsonCodec SHARED = new GsonCodec(new GsonBuilder()
+      .setObjectToNumberStrategy(ToNumberPolicy.LONG_OR_DOUBLE)
+      .create());
+
+  private final Gson gson;
+
+  public GsonCodec(Gson gson) {
+    this.gson = gson;
+  }
+
+  public static GsonCodec shared() {
+    return SHARED;
+  }
+
+  public Gson getGson() {
+    return gson;
+  }
+
+  @Override
+  public void write(Object value, OutputStream out) throws IOException {
+    Utf8Writer writer = new Utf8Writer(out);
+    gson.toJson(value, writer);
+    writer.flush();
+  }
+
+  @Override
+  public <T> T read(String json, Type type) throws IllegalArgumentException {
+    try {
+      return gson.fromJson(json, type);
+    } catch (JsonParseException e) {
+      throw new IllegalArgumentException("Invalid JSON: " + e.getMessage(), e);
+    }
+  }
+
+  // Encodes straight into the stream through a small buffer
+  // (OutputStreamWriter sets up an 8 KB encoder for every response)
+  private static final class Utf8Writer extends Writer {
+    private final OutputStream out;
+    private final byte[] buffer = new byte[512];
+    private int length = 0;
+
+    Utf8Writer(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      if (length + 4 > buffer.length) {
+        drain();
+      }
+      if (c < 0x80) {
+        buffer[length++] = (byte) c;
+      } else if (Character.isSurrogate((char) c)) {
+        buffer[length++] = '?'; // unpaired surrogate, like OutputStreamWriter
+      } else if (c < 0x800) {
+        buffer[length++] = (byte) (0xC0 | (c >> 6));
+        buffer[length++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+        buffer[length++] = (byte) (0xE0 | (c >> 12));
+        buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buffer[length++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int count) throws IOException {
+      int end = offset + count;
+      for (int i = offset; i < end; i++) {
+        char c = chars[i];
+        if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+          writeCodePoint(Character.toCodePoint(c, chars[++i]));
+        } else {
+          write(c);
+        }
+      }
+    }
+
+    @Override
+    public void write(String text, int offset, int count) throws IOException {
+      int end = offset + count;
+      for (int i = offset; i < end; i++) {
+        char c = text.charAt(i);
+        if (c < 0x80 && length < buffer.length) {
+          buffer[length++] = (byte) c; // ASCII fast path
+        } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+          writeCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+        } else {
+          write(c);
+        }
+      }
+    }
+
+    private void writeCodePoint(int codePoint) throws IOException {
+      if (length + 4 > buffer.length) {
+        drain();
+      }
+      buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+      buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+      buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+
+    private void drain() throws IOException {
+      out.write(buffer, 0, length);
+      length = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      drain();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+}
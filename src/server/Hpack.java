@@ -0,0 +1,341 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// HPACK (RFC 7541) pieces shared by HpackDecoder and HpackEncoder:
+// the static table, the Huffman code and the prefixed integer / string representations.
+final class Hpack {
+
+  // Entry size overhead counted against the dynamic table size (RFC 7541 4.1)
+  static final int ENTRY_OVERHEAD = 32;
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  // Invalid header block; fails the whole connection (COMPRESSION_ERROR)
+  static final class CompressionException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    CompressionException(String message) {
+      super(message);
+    }
+  }
+
+  // { name, value }, index 1..61 (RFC 7541 Appendix A)
+  static final String[][] STATIC_TABLE = {
+      null,
+      { ":authority", "" },
+      { ":method", "GET" },
+      { ":method", "POST" },
+      { ":path", "/" },
+      { ":path", "/index.html" },
+      { ":scheme", "http" },
+      { ":scheme", "https" },
+      { ":status", "200" },
+      { ":status", "204" },
+      { ":status", "206" },
+      { ":status", "304" },
+      { ":status", "400" },
+      { ":status", "404" },
+      { ":status", "500" },
+      { "accept-charset", "" },
+      { "accept-encoding", "gzip, deflate" },
+      { "accept-language", "" },
+      { "accept-ranges", "" },
+      { "accept", "" },
+      { "access-control-allow-origin", "" },
+      { "age", "" },
+      { "allow", "" },
+      { "authorization", "" },
+      { "cache-control", "" },
+      { "content-disposition", "" },
+      { "content-encoding", "" },
+      { "content-language", "" },
+      { "content-length", "" },
+      { "content-location", "" },
+      { "content-range", "" },
+      { "content-type", "" },
+      { "cookie", "" },
+      { "date", "" },
+      { "etag", "" },
+      { "expect", "" },
+      { "expires", "" },
+      { "from", "" },
+      { "host", "" },
+      { "if-match", "" },
+      { "if-modified-since", "" },
+      { "if-none-match", "" },
+      { "if-range", "" },
+      { "if-unmodified-since", "" },
+      { "last-modified", "" },
+      { "link", "" },
+      { "location", "" },
+      { "max-forwards", "" },
+      { "proxy-authenticate", "" },
+      { "proxy-authorization", "" },
+      { "range", "" },
+      { "referer", "" },
+      { "refresh", "" },
+      { "retry-after", "" },
+      { "server", "" },
+      { "set-cookie", "" },
+      { "strict-transport-security", "" },
+      { "transfer-encoding", "" },
+      { "user-agent", "" },
+      { "vary", "" },
+      { "via", "" },
+      { "www-authenticate", "" }
+  };
+
+  static final int STATIC_TABLE_LENGTH = STATIC_TABLE.length - 1;
+
+  // lookups for the encoder: "name" -> first index, "name\0value" -> index
+  static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+  static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+  // Huffman code of every octet (RFC 7541 Appendix B), index 256 is EOS
+  static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+      0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+      0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+      0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+      0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+      0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+      0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+      0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+      0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+      0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+      0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+      0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+      0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+      0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+      0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+      0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+      0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+      0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+      0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+      0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+      0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+      0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+      0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+      0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+      0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+      0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+      0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+      0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+      0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+      0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+      0x3fffffff
+  };
+
+  static final byte[] HUFFMAN_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+      30
+  };
+
+  // Binary decoding tree built from the code table: children of node n are
+  // TREE[2n] (bit 0) and TREE[2n + 1] (bit 1); a negative entry is a leaf holding -(symbol + 1).
+  private static final int[] TREE;
+  private static final int EOS = 256;
+
+  static {
+    for (int i = STATIC_TABLE_LENGTH; i >= 1; i--) {
+      STATIC_NAMES.put(STATIC_TABLE[i][0], i);
+      STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i);
+    }
+
+    int[] tree = new int[2 * 2 * HUFFMAN_CODES.length];
+    int nodes = 1;
+    for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+      int node = 0;
+      for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+        int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+        if (bit == 0) {
+          tree[slot] = -(symbol + 1);
+        } else {
+          if (tree[slot] == 0) {
+            tree[slot] = nodes++;
+          }
+          node = tree[slot];
+        }
+      }
+    }
+    TREE = tree;
+  }
+
+  private Hpack() {
+  }
+
+  // -------------------------------------------------------
+  // Decoding
+
+  // Position in a header block, advanced by the read methods
+  static final class Reader {
+    final byte[] data;
+    int pos;
+    final int limit;
+
+    Reader(byte[] data, int offset, int length) {
+      this.data = data;
+      this.pos = offset;
+      this.limit = offset + length;
+    }
+
+    boolean hasMore() {
+      return pos < limit;
+    }
+
+    int peek() {
+      return data[pos] & 0xFF;
+    }
+
+    // Integer with an N-bit prefix (RFC 7541 5.1); the first octet's flag bits are ignored
+    int readInt(int prefixBits) {
+      int max = (1 << prefixBits) - 1;
+      int value = next() & max;
+      if (value < max) {
+        return value;
+      }
+      int shift = 0;
+      int b;
+      do {
+        b = next();
+        if (shift > 28 || (shift == 28 && (b & 0x7F) > 7)) {
+          throw new CompressionException("Integer overflow");
+        }
+        value += (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      if (value < 0) {
+        throw new CompressionException("Integer overflow");
+      }
+      return value;
+    }
+
+    // String literal (RFC 7541 5.2), Huffman coded or not
+    String readString() {
+      boolean huffman = (peek() & 0x80) != 0;
+      int length = readInt(7);
+      if (length > limit - pos) {
+        throw new CompressionException("String longer than the header block");
+      }
+      String value = huffman ? huffmanDecode(data, pos, length) : new String(data, pos, length, StandardCharsets.UTF_8);
+      pos += length;
+      return value;
+    }
+
+    private int next() {
+      if (pos >= limit) {
+        throw new CompressionException("Truncated header block");
+      }
+      return data[pos++] & 0xFF;
+    }
+  }
+
+  static String huffmanDecode(byte[] data, int offset, int length) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length * 8 / 5 + 1);
+    int node = 0;
+    int depth = 0; // bits read since the last symbol
+    boolean allOnes = true; // padding must be the most significant bits of EOS
+    for (int i = offset; i < offset + length; i++) {
+      int b = data[i] & 0xFF;
+      for (int bit = 7; bit >= 0; bit--) {
+        int one = (b >>> bit) & 1;
+        int next = TREE[2 * node + one];
+        depth++;
+        allOnes &= one == 1;
+        if (next < 0) {
+          int symbol = -next - 1;
+          if (symbol == EOS) {
+            throw new CompressionException("EOS in a Huffman string");
+          }
+          out.write(symbol);
+          node = 0;
+          depth = 0;
+          allOnes = true;
+        } else if (next == 0) {
+          throw new CompressionException("Invalid Huffman code");
+        } else {
+          node = next;
+        }
+      }
+    }
+    if (depth > 7 || !allOnes) {
+      throw new CompressionException("Invalid Huffman padding");
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  // -------------------------------------------------------
+  // Encoding
+
+  static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(flags | value);
+      return;
+    }
+    out.write(flags | max);
+    value -= max;
+    while (value >= 0x80) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  // Huffman coded when that is shorter
+  static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    long bits = 0;
+    for (byte b : bytes) {
+      bits += HUFFMAN_LENGTHS[b & 0xFF];
+    }
+    int huffmanLength = (int) ((bits + 7) / 8);
+    if (huffmanLength >= bytes.length) {
+      writeInt(out, 0, 7, bytes.length);
+      out.write(bytes, 0, bytes.length);
+      return;
+    }
+    writeInt(out, 0x80, 7, huffmanLength);
+    long current = 0;
+    int pending = 0; // bits in current
+    for (byte b : bytes) {
+      int symbol = b & 0xFF;
+      current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+      pending += HUFFMAN_LENGTHS[symbol];
+      while (pending >= 8) {
+        pending -= 8;
+        out.write((int) (current >>> pending));
+      }
+    }
+    if (pending > 0) {
+      // pad with the most significant bits of EOS (all ones)
+      out.write((int) ((current << (8 - pending)) | (0xFF >>> pending)));
+    }
+  }
+
+  static int entrySize(String name, String value) {
+    return name.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length
+        + ENTRY_OVERHEAD;
+  }
+
+}
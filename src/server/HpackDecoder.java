@@ -0,0 +1,110 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Decodes the header blocks of one HTTP/2 connection (RFC 7541).
+// The dynamic table is shared by all streams, so blocks must be decoded in the order they arrived.
+final class HpackDecoder {
+
+  private final ArrayDeque<String[]> table = new ArrayDeque<>(); // newest first
+  private final ArrayDeque<Integer> sizes = new ArrayDeque<>();
+  private int tableSize = 0;
+  private int maxTableSize; // set by the encoder with a size update, up to the limit we advertised
+  private final int tableSizeLimit;
+  private final int maxHeaderListSize;
+
+  HpackDecoder(int tableSizeLimit, int maxHeaderListSize) {
+    this.tableSizeLimit = tableSizeLimit;
+    this.maxTableSize = tableSizeLimit;
+    this.maxHeaderListSize = maxHeaderListSize;
+  }
+
+  // Returns name, value, name, value, ...
+  List<String> decode(byte[] block, int offset, int length) throws Hpack.CompressionException {
+    Hpack.Reader in = new Hpack.Reader(block, offset, length);
+    List<String> headers = new ArrayList<>();
+    int listSize = 0;
+    boolean first = true;
+    while (in.hasMore()) {
+      int b = in.peek();
+      String name;
+      String value;
+      if ((b & 0x80) != 0) {
+        // indexed field
+        String[] field = get(in.readInt(7));
+        name = field[0];
+        value = field[1];
+      } else if ((b & 0xE0) == 0x20) {
+        // dynamic table size update, only at the start of a block
+        if (!first) {
+          throw new Hpack.CompressionException("Table size update after a header");
+        }
+        int size = in.readInt(5);
+        if (size > tableSizeLimit) {
+          throw new Hpack.CompressionException("Table size update above the advertised limit");
+        }
+        maxTableSize = size;
+        evict(0);
+        continue;
+      } else {
+        // literal: with incremental indexing (01), without indexing (0000) or never indexed (0001)
+        boolean indexing = (b & 0xC0) == 0x40;
+        int index = in.readInt(indexing ? 6 : 4);
+        name = index == 0 ? in.readString() : get(index)[0];
+        value = in.readString();
+        if (indexing) {
+          add(name, value);
+        }
+      }
+      first = false;
+      listSize += Hpack.entrySize(name, value);
+      if (listSize > maxHeaderListSize) {
+        throw new Hpack.CompressionException("Header list too large");
+      }
+      headers.add(name);
+      headers.add(value);
+    }
+    return headers;
+  }
+
+  private String[] get(int index) {
+    if (index <= 0) {
+      throw new Hpack.CompressionException("Invalid index 0");
+    }
+    if (index <= Hpack.STATIC_TABLE_LENGTH) {
+      return Hpack.STATIC_TABLE[index];
+    }
+    int position = index - Hpack.STATIC_TABLE_LENGTH - 1;
+    if (position >= table.size()) {
+      throw new Hpack.CompressionException("Index " + index + " outside the table");
+    }
+    Iterator<String[]> it = table.iterator();
+    for (int i = 0; i < position; i++) {
+      it.next();
+    }
+    return it.next();
+  }
+
+  private void add(String name, String value) {
+    int size = Hpack.entrySize(name, value);
+    evict(size);
+    if (size > maxTableSize) {
+      return; // too large for the table: it is emptied and the entry is not added (RFC 7541 4.4)
+    }
+    table.addFirst(new String[] { name, value });
+    sizes.addFirst(size);
+    tableSize += size;
+  }
+
+  // Drops the oldest entries until `incoming` more bytes fit
+  private void evict(int incoming) {
+    while (!table.isEmpty() && tableSize + incoming > maxTableSize) {
+      table.removeLast();
+      tableSize -= sizes.removeLast();
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Encodes the response header blocks of one HTTP/2 connection (RFC 7541).
+// Repeated fields (content-type, cache-control, ...) become one-byte references to the
+// dynamic table; values that change on every response are sent as literals without indexing.
+final class HpackEncoder {
+
+  private final ArrayDeque<String[]> table = new ArrayDeque<>(); // newest first
+  private final ArrayDeque<Integer> sizes = new ArrayDeque<>();
+  private int tableSize = 0;
+  private int maxTableSize = Hpack.DEFAULT_TABLE_SIZE;
+  private int smallestUpdate = -1; // smallest size set since the last block, -1 when unchanged
+
+  // Peer's SETTINGS_HEADER_TABLE_SIZE; announced at the start of the next block
+  void setMaxTableSize(int size) {
+    int newSize = Math.min(size, Hpack.DEFAULT_TABLE_SIZE);
+    if (newSize == maxTableSize) {
+      return;
+    }
+    maxTableSize = newSize;
+    smallestUpdate = smallestUpdate == -1 ? newSize : Math.min(smallestUpdate, newSize);
+    evict(0);
+  }
+
+  // Must be called before the first field of every block
+  void startBlock(ByteArrayOutputStream out) {
+    if (smallestUpdate == -1) {
+      return;
+    }
+    Hpack.writeInt(out, 0x20, 5, smallestUpdate);
+    if (smallestUpdate != maxTableSize) {
+      Hpack.writeInt(out, 0x20, 5, maxTableSize);
+    }
+    smallestUpdate = -1;
+  }
+
+  // name must be lower case
+  void encode(ByteArrayOutputStream out, String name, String value, boolean indexable) {
+    Integer index = Hpack.STATIC_FIELDS.get(name + '\0' + value);
+    if (index == null) {
+      index = findDynamic(name, value);
+    }
+    if (index != null) {
+      Hpack.writeInt(out, 0x80, 7, index);
+      return;
+    }
+    Integer nameIndex = Hpack.STATIC_NAMES.get(name);
+    if (indexable) {
+      writeLiteral(out, 0x40, 6, nameIndex, name, value);
+      add(name, value);
+    } else {
+      writeLiteral(out, 0x00, 4, nameIndex, name, value);
+    }
+  }
+
+  private void writeLiteral(ByteArrayOutputStream out, int flags, int prefixBits, Integer nameIndex,
+      String name, String value) {
+    if (nameIndex != null) {
+      Hpack.writeInt(out, flags, prefixBits, nameIndex);
+    } else {
+      Hpack.writeInt(out, flags, prefixBits, 0);
+      Hpack.writeString(out, name);
+    }
+    Hpack.writeString(out, value);
+  }
+
+  private Integer findDynamic(String name, String value) {
+    int index = Hpack.STATIC_TABLE_LENGTH + 1;
+    Iterator<String[]> it = table.iterator();
+    while (it.hasNext()) {
+      String[] field = it.next();
+      if (field[0].equals(name) && field[1].equals(value)) {
+        return index;
+      }
+      index++;
+    }
+    return null;
+  }
+
+  private void add(String name, String value) {
+    int size = Hpack.entrySize(name, value);
+    evict(size);
+    if (size > maxTableSize) {
+      return;
+    }
+    table.addFirst(new String[] { name, value });
+    sizes.addFirst(size);
+    tableSize += size;
+  }
+
+  private void evict(int incoming) {
+    while (!table.isEmpty() && tableSize + incoming > maxTableSize) {
+      table.removeLast();
+      tableSize -= sizes.removeLast();
+    }
+  }
+
+}
@@ -0,0 +1,1061 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+
+// Cleartext HTTP/2 (RFC 9113) on a connection that left HTTP/1.1, either with the
+// "PRI * HTTP/2.0" preface (prior knowledge) or with "Upgrade: h2c".
+// Frames are read and written on the event loop that owns the connection; every stream
+// runs on the worker pool through server.handle(), like an HTTP/1.1 request.
+// Server-Sent Events keep their stream open; WebSocket routes need HTTP/1.1.
+final class Http2Connection implements UpgradeHandler {
+
+  static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  private static final int PREFACE_LINE_LENGTH = 18; // "PRI * HTTP/2.0\r\n\r\n", read by the HTTP/1.1 parser
+
+  static final int MAX_CONCURRENT_STREAMS = 100;
+  // Client resets of unanswered streams tolerated before GOAWAY, when they also outnumber the answered
+  // streams: HEADERS + RST_STREAM in a loop would otherwise keep the workers busy for free (CVE-2023-44487)
+  private static final int MAX_CLIENT_RESETS = 2 * MAX_CONCURRENT_STREAMS;
+  static final int MAX_HEADER_LIST_SIZE = HttpRequestParser.MAX_HEAD_SIZE;
+  private static final int FRAME_HEADER_SIZE = 9;
+  private static final int MAX_FRAME_SIZE = 16384; // both ways: we never announce or use larger frames
+  private static final int DEFAULT_WINDOW = 65535;
+  private static final int CONNECTION_WINDOW = 1024 * 1024; // all streams' request bodies together
+  private static final int MAX_QUEUED = 64 * 1024; // response DATA waiting for the socket, per connection
+  private static final int MAX_WINDOW = Integer.MAX_VALUE;
+
+  // Frame types
+  private static final int DATA = 0x0;
+  private static final int HEADERS = 0x1;
+  private static final int PRIORITY = 0x2;
+  private static final int RST_STREAM = 0x3;
+  private static final int SETTINGS = 0x4;
+  private static final int PUSH_PROMISE = 0x5;
+  private static final int PING = 0x6;
+  private static final int GOAWAY = 0x7;
+  private static final int WINDOW_UPDATE = 0x8;
+  private static final int CONTINUATION = 0x9;
+
+  // Flags
+  private static final int END_STREAM = 0x1;
+  private static final int ACK = 0x1;
+  private static final int END_HEADERS = 0x4;
+  private static final int PADDED = 0x8;
+  private static final int PRIORITY_FLAG = 0x20;
+
+  // Settings
+  private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  private static final int SETTINGS_ENABLE_PUSH = 0x2;
+  private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+  // Error codes
+  static final int NO_ERROR = 0x0;
+  static final int PROTOCOL_ERROR = 0x1;
+  static final int INTERNAL_ERROR = 0x2;
+  static final int FLOW_CONTROL_ERROR = 0x3;
+  static final int STREAM_CLOSED = 0x5;
+  static final int FRAME_SIZE_ERROR = 0x6;
+  static final int REFUSED_STREAM = 0x7;
+  static final int CANCEL = 0x8;
+  static final int COMPRESSION_ERROR = 0x9;
+  static final int ENHANCE_YOUR_CALM = 0xb;
+  static final int HTTP_1_1_REQUIRED = 0xd;
+
+  // Connection-specific fields are not allowed in HTTP/2 (RFC 9113 8.2.2)
+  private static final Set<String> CONNECTION_HEADERS = Set.of(
+      "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+  // Response fields that change on every response are not worth a dynamic table entry
+  private static final Set<String> NOT_INDEXED = Set.of(
+      "content-length", "date", "etag", "last-modified", "location", "set-cookie");
+
+  private final HttpServer server;
+  private final HttpRequest upgradeRequest; // h2c: answered on stream 1, null for prior knowledge
+  private final String remoteAddress; // of the connection, set on every stream's request
+  private UpgradedConnection conn;
+  private int prefaceRead; // bytes of the client preface received so far
+  private boolean closed = false;
+  private boolean goingAway = false; // no new streams, close once the open ones are answered
+
+  private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+  private final HpackEncoder encoder = new HpackEncoder();
+  private final Map<Integer, Stream> streams = new HashMap<>();
+  private final ArrayDeque<Stream> sending = new ArrayDeque<>(); // responses with DATA left to send
+  private int lastStreamId = 0;
+  private int running = 0; // handlers on the worker pool, reset streams included until they return
+  private int clientResets = 0; // streams the client reset before their response was complete
+  private int answered = 0;     // streams whose response was sent completely
+
+  // Header block split over HEADERS + CONTINUATION frames
+  private int blockStreamId = 0;
+  private boolean blockEndStream;
+  private ByteArrayOutputStream block;
+
+  // Flow control
+  private int peerInitialWindow = DEFAULT_WINDOW;
+  private long sendWindow = DEFAULT_WINDOW; // connection window for our DATA
+  private int receiveWindow = CONNECTION_WINDOW; // connection window for the client's DATA
+  private int receiveUnacked = 0;
+
+  private Http2Connection(HttpServer server, HttpRequest first, HttpRequest upgradeRequest, int prefaceRead) {
+    this.server = server;
+    this.remoteAddress = first.getRemoteAddress();
+    this.upgradeRequest = upgradeRequest;
+    this.prefaceRead = prefaceRead;
+  }
+
+  // "Upgrade: h2c" on a request without a body (the body would have to be read before switching)
+  static boolean isUpgrade(HttpRequest req) {
+    return HttpServer.hasToken(req.getHeader("Upgrade"), "h2c")
+        && req.getHeader("HTTP2-Settings") != null
+        && "HTTP/1.1".equals(req.getVersion())
+        && req.getRequestBody() == null;
+  }
+
+  // Response that hands the connection over to HTTP/2, null when the h2c settings are invalid
+  static HttpResponse accept(HttpServer server, HttpRequest req) {
+    HttpResponse res = new HttpResponse();
+    if ("PRI".equals(req.getMethod())) {
+      res.switchProtocol(new Http2Connection(server, req, null, PREFACE_LINE_LENGTH));
+      return res;
+    }
+
+    Http2Connection connection = new Http2Connection(server, req, req, 0);
+    try {
+      byte[] settings = Base64.getUrlDecoder().decode(req.getHeader("HTTP2-Settings").trim());
+      connection.applySettings(ByteBuffer.wrap(settings));
+    } catch (IllegalArgumentException | Http2Exception e) {
+      return null;
+    }
+    res.status(101);
+    res.addHeader("Connection", "Upgrade");
+    res.addHeader("Upgrade", "h2c");
+    res.upgrade(connection);
+    return res;
+  }
+
+  // -------------------------------------------------------
+  // UpgradeHandler
+
+  @Override
+  public void onOpen(UpgradedConnection connection) {
+    this.conn = connection;
+    ByteBuffer settings = ByteBuffer.allocate(12);
+    settings.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+    settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+    writeFrame(SETTINGS, 0, 0, settings.array());
+    writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+
+    if (upgradeRequest != null) {
+      // the request that asked for the upgrade is stream 1, already complete (RFC 7540 3.2)
+      HttpRequest req = new HttpRequest(upgradeRequest.getMethod(), upgradeRequest.getPath(), "HTTP/2.0");
+      Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      headers.putAll(upgradeRequest.getHeaders());
+      headers.remove("Connection");
+      headers.remove("Upgrade");
+      headers.remove("HTTP2-Settings");
+      req.setHeaders(headers);
+      req.setRemoteAddress(remoteAddress);
+      Stream stream = new Stream(1);
+      stream.remoteClosed = true;
+      streams.put(1, stream);
+      lastStreamId = 1;
+      dispatch(stream, req);
+    }
+  }
+
+  @Override
+  public void onData(ByteBuffer data) {
+    if (closed) {
+      data.position(data.limit());
+      return;
+    }
+    try {
+      while (prefaceRead < PREFACE.length && data.hasRemaining()) {
+        if (data.get() != PREFACE[prefaceRead++]) {
+          throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+        }
+      }
+      while (!closed && data.remaining() >= FRAME_HEADER_SIZE) {
+        int start = data.position();
+        int length = (data.get(start) & 0xFF) << 16 | (data.get(start + 1) & 0xFF) << 8 | (data.get(start + 2) & 0xFF);
+        if (length > MAX_FRAME_SIZE) {
+          throw new Http2Exception(FRAME_SIZE_ERROR, "Frame larger than SETTINGS_MAX_FRAME_SIZE");
+        }
+        if (data.remaining() < FRAME_HEADER_SIZE + length) {
+          return; // the rest of the frame has not arrived yet
+        }
+        int type = data.get(start + 3) & 0xFF;
+        int flags = data.get(start + 4) & 0xFF;
+        int streamId = data.getInt(start + 5) & 0x7FFFFFFF;
+        ByteBuffer payload = data.slice(start + FRAME_HEADER_SIZE, length);
+        data.position(start + FRAME_HEADER_SIZE + length);
+        onFrame(type, flags, streamId, payload);
+      }
+    } catch (Http2Exception e) {
+      goAway(e.code, e.getMessage());
+      data.position(data.limit());
+    }
+  }
+
+  @Override
+  public void onDrained() {
+    pump();
+  }
+
+  @Override
+  public void onClose() {
+    closed = true;
+    for (Stream stream : new ArrayList<>(streams.values())) {
+      stream.close(new IOException("HTTP/2 connection closed"));
+    }
+    streams.clear();
+    sending.clear();
+  }
+
+  // -------------------------------------------------------
+  // Incoming frames
+
+  private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+    if (block != null && (type != CONTINUATION || streamId != blockStreamId)) {
+      throw new Http2Exception(PROTOCOL_ERROR, "Expected CONTINUATION of stream " + blockStreamId);
+    }
+    switch (type) {
+      case DATA:
+        onDataFrame(flags, streamId, payload);
+        break;
+      case HEADERS:
+        onHeaders(flags, streamId, payload);
+        break;
+      case CONTINUATION:
+        onContinuation(flags, streamId, payload);
+        break;
+      case PRIORITY:
+        if (streamId == 0) {
+          throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+        }
+        if (payload.remaining() != 5) {
+          resetStream(streamId, FRAME_SIZE_ERROR);
+        }
+        break; // priorities are advisory, streams are answered round-robin
+      case RST_STREAM:
+        onResetStream(streamId, payload);
+        break;
+      case SETTINGS:
+        onSettings(flags, streamId, payload);
+        break;
+      case PUSH_PROMISE:
+        throw new Http2Exception(PROTOCOL_ERROR, "Clients cannot push");
+      case PING:
+        if (streamId != 0) {
+          throw new Http2Exception(PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (payload.remaining() != 8) {
+          throw new Http2Exception(FRAME_SIZE_ERROR, "PING payload must be 8 bytes");
+        }
+        if ((flags & ACK) == 0) {
+          writeFrame(PING, ACK, 0, toArray(payload));
+        }
+        break;
+      case GOAWAY:
+        if (streamId != 0) {
+          throw new Http2Exception(PROTOCOL_ERROR, "GOAWAY on a stream");
+        }
+        goingAway = true; // the client opens no more streams, the open ones are still answered
+        if (streams.isEmpty()) {
+          close();
+        }
+        break;
+      case WINDOW_UPDATE:
+        onWindowUpdate(streamId, payload);
+        break;
+      default:
+        break; // unknown frame types are ignored (RFC 9113 4.1)
+    }
+  }
+
+  private void onDataFrame(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+    if (streamId == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+    }
+    int length = payload.remaining();
+    int padding = readPadding(flags, payload);
+
+    // the whole frame counts against the connection window, whatever happens to the stream
+    if (length > receiveWindow) {
+      throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window exceeded");
+    }
+    receiveWindow -= length;
+    receiveUnacked += length;
+    if (receiveUnacked >= CONNECTION_WINDOW / 2) {
+      writeWindowUpdate(0, receiveUnacked);
+      receiveWindow += receiveUnacked;
+      receiveUnacked = 0;
+    }
+
+    Stream stream = streams.get(streamId);
+    if (stream == null) {
+      if (streamId > lastStreamId) {
+        throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+      }
+      resetStream(streamId, STREAM_CLOSED);
+      return;
+    }
+    if (stream.remoteClosed) {
+      resetStream(streamId, STREAM_CLOSED);
+      return;
+    }
+    if (length > stream.receiveWindow) {
+      resetStream(streamId, FLOW_CONTROL_ERROR);
+      return;
+    }
+    stream.receiveWindow -= length;
+    stream.consumed(length - payload.remaining() + padding); // padding is never read by the handler
+
+    int dataLength = payload.remaining() - padding;
+    stream.received += dataLength;
+    if (stream.expectedLength >= 0 && stream.received > stream.expectedLength) {
+      resetStream(streamId, PROTOCOL_ERROR);
+      return;
+    }
+    if (dataLength > 0) {
+      stream.body.offer(payload.array(), payload.arrayOffset() + payload.position(), dataLength);
+    }
+    if ((flags & END_STREAM) != 0) {
+      if (stream.expectedLength >= 0 && stream.received != stream.expectedLength) {
+        resetStream(streamId, PROTOCOL_ERROR); // content-length does not match the DATA (RFC 9113 8.1.1)
+        return;
+      }
+      stream.remoteClosed = true;
+      stream.body.finish();
+    }
+  }
+
+  private void onHeaders(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+    if (streamId == 0 || streamId % 2 == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "Invalid stream id " + streamId + " for HEADERS");
+    }
+    int padding = readPadding(flags, payload);
+    if ((flags & PRIORITY_FLAG) != 0) {
+      if (payload.remaining() - padding < 5) {
+        throw new Http2Exception(PROTOCOL_ERROR, "HEADERS too short for its priority");
+      }
+      payload.position(payload.position() + 5);
+    }
+    payload.limit(payload.limit() - padding);
+    boolean endStream = (flags & END_STREAM) != 0;
+    if ((flags & END_HEADERS) != 0) {
+      onHeaderBlock(streamId, endStream, toArray(payload));
+      return;
+    }
+    blockStreamId = streamId;
+    blockEndStream = endStream;
+    block = new ByteArrayOutputStream();
+    block.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+  }
+
+  private void onContinuation(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+    if (block == null) {
+      throw new Http2Exception(PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+    }
+    block.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+    if (block.size() > 2 * MAX_HEADER_LIST_SIZE) {
+      throw new Http2Exception(ENHANCE_YOUR_CALM, "Header block too large");
+    }
+    if ((flags & END_HEADERS) != 0) {
+      byte[] complete = block.toByteArray();
+      block = null;
+      onHeaderBlock(blockStreamId, blockEndStream, complete);
+    }
+  }
+
+  private void onHeaderBlock(int streamId, boolean endStream, byte[] encoded) throws Http2Exception {
+    // decoded even for a stream we refuse: the dynamic table is shared by the whole connection
+    List<String> fields;
+    try {
+      fields = decoder.decode(encoded, 0, encoded.length);
+    } catch (Hpack.CompressionException e) {
+      throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+    }
+
+    Stream stream = streams.get(streamId);
+    if (stream != null) {
+      // trailers: accepted and ignored, they must end the stream
+      if (stream.remoteClosed || !endStream) {
+        resetStream(streamId, stream.remoteClosed ? STREAM_CLOSED : PROTOCOL_ERROR);
+        return;
+      }
+      stream.remoteClosed = true;
+      stream.body.finish();
+      return;
+    }
+    if (streamId <= lastStreamId) {
+      return; // stream already answered, reset or refused: frames still in flight are ignored
+    }
+    lastStreamId = streamId;
+    if (goingAway) {
+      return;
+    }
+    if (streams.size() >= MAX_CONCURRENT_STREAMS || running >= MAX_CONCURRENT_STREAMS) {
+      resetStream(streamId, REFUSED_STREAM);
+      return;
+    }
+
+    stream = new Stream(streamId);
+    HttpRequest req;
+    try {
+      req = toRequest(fields, stream);
+    } catch (IllegalArgumentException e) {
+      resetStream(streamId, PROTOCOL_ERROR); // malformed request (RFC 9113 8.1.1)
+      return;
+    }
+    req.setRemoteAddress(remoteAddress);
+    streams.put(streamId, stream);
+    if (endStream) {
+      stream.remoteClosed = true;
+      if (stream.expectedLength > 0) {
+        resetStream(streamId, PROTOCOL_ERROR);
+        return;
+      }
+    } else {
+      stream.body = new BodyPipe(stream.expectedLength, HttpRequestParser.MAX_BODY_SIZE,
+          server.getKeepAliveTimeout(), () -> {}, null);
+      Stream owner = stream;
+      stream.body.onConsumed(count -> conn.execute(() -> owner.consumed(count)));
+      req.setRequestBody(stream.body);
+    }
+    dispatch(stream, req);
+  }
+
+  private void onResetStream(int streamId, ByteBuffer payload) throws Http2Exception {
+    if (streamId == 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+    }
+    if (payload.remaining() != 4) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, "RST_STREAM payload must be 4 bytes");
+    }
+    if (streamId > lastStreamId) {
+      throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+    }
+    Stream stream = streams.get(streamId);
+    if (stream != null) {
+      closeStream(stream, new IOException("Stream reset by the client"));
+      clientResets++;
+      if (clientResets > MAX_CLIENT_RESETS && clientResets > answered) {
+        throw new Http2Exception(ENHANCE_YOUR_CALM, "Too many streams reset by the client");
+      }
+    }
+  }
+
+  private void onSettings(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+    if (streamId != 0) {
+      throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+    }
+    if ((flags & ACK) != 0) {
+      if (payload.hasRemaining()) {
+        throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+      }
+      return;
+    }
+    applySettings(payload);
+    writeFrame(SETTINGS, ACK, 0, new byte[0]);
+    pump(); // a larger initial window may unblock streams
+  }
+
+  private void applySettings(ByteBuffer payload) throws Http2Exception {
+    if (payload.remaining() % 6 != 0) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS payload must be a multiple of 6 bytes");
+    }
+    while (payload.hasRemaining()) {
+      int id = payload.getShort() & 0xFFFF;
+      long value = payload.getInt() & 0xFFFFFFFFL;
+      switch (id) {
+        case SETTINGS_HEADER_TABLE_SIZE:
+          encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+          break;
+        case SETTINGS_ENABLE_PUSH:
+          if (value > 1) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+          }
+          break; // the server never pushes
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value > MAX_WINDOW) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+          }
+          int delta = (int) value - peerInitialWindow;
+          peerInitialWindow = (int) value;
+          for (Stream stream : streams.values()) {
+            stream.sendWindow += delta;
+            if (stream.sendWindow > MAX_WINDOW) {
+              throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+            }
+            stream.unblock();
+          }
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < MAX_FRAME_SIZE || value > 0xFFFFFF) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+          }
+          break; // frames of 16384 bytes are always allowed
+        default:
+          break; // MAX_CONCURRENT_STREAMS only limits pushes, MAX_HEADER_LIST_SIZE is advisory
+      }
+    }
+  }
+
+  private void onWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+    if (payload.remaining() != 4) {
+      throw new Http2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE payload must be 4 bytes");
+    }
+    int increment = payload.getInt() & 0x7FFFFFFF;
+    if (streamId == 0) {
+      if (increment == 0) {
+        throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+      }
+      sendWindow += increment;
+      if (sendWindow > MAX_WINDOW) {
+        throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+      }
+      pump();
+      return;
+    }
+    Stream stream = streams.get(streamId);
+    if (stream == null) {
+      if (streamId > lastStreamId) {
+        throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+      }
+      return; // frames may still be on their way after a stream closed
+    }
+    if (increment == 0 || stream.sendWindow + increment > MAX_WINDOW) {
+      resetStream(streamId, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+      return;
+    }
+    stream.sendWindow += increment;
+    stream.unblock();
+    pump();
+  }
+
+  // Padding length of a PADDED frame, whose first payload byte is consumed
+  private static int readPadding(int flags, ByteBuffer payload) throws Http2Exception {
+    if ((flags & PADDED) == 0) {
+      return 0;
+    }
+    if (!payload.hasRemaining()) {
+      throw new Http2Exception(PROTOCOL_ERROR, "PADDED frame without a padding length");
+    }
+    int padding = payload.get() & 0xFF;
+    if (padding > payload.remaining()) {
+      throw new Http2Exception(PROTOCOL_ERROR, "Padding longer than the frame");
+    }
+    return padding;
+  }
+
+  // Builds the request of a stream from its decoded header fields
+  private static HttpRequest toRequest(List<String> fields, Stream stream) throws IllegalArgumentException {
+    String method = null;
+    String path = null;
+    String authority = null;
+    boolean scheme = false;
+    Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    boolean regular = false;
+    for (int i = 0; i < fields.size(); i += 2) {
+      String name = fields.get(i);
+      String value = fields.get(i + 1);
+      if (!name.equals(name.toLowerCase())) {
+        throw new IllegalArgumentException("Uppercase header name " + name);
+      }
+      if (name.startsWith(":")) {
+        if (regular) {
+          throw new IllegalArgumentException("Pseudo-header after a regular header");
+        }
+        switch (name) {
+          case ":method":
+            method = first(method, value);
+            break;
+          case ":path":
+            path = first(path, value);
+            break;
+          case ":authority":
+            authority = first(authority, value);
+            break;
+          case ":scheme":
+            if (scheme) {
+              throw new IllegalArgumentException("Repeated :scheme");
+            }
+            scheme = true;
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown pseudo-header " + name);
+        }
+        continue;
+      }
+      regular = true;
+      if (CONNECTION_HEADERS.contains(name) || (name.equals("te") && !value.equals("trailers"))) {
+        throw new IllegalArgumentException("Connection-specific header " + name);
+      }
+      String previous = headers.get(name);
+      if (previous != null) {
+        // repeated fields are joined, cookie crumbs with "; " (RFC 9113 8.2.3)
+        value = previous + (name.equals("cookie") ? "; " : ", ") + value;
+      }
+      headers.put(name, value);
+    }
+    if (method == null || path == null || !scheme || (!path.startsWith("/") && !path.equals("*"))) {
+      throw new IllegalArgumentException("Missing or invalid pseudo-headers");
+    }
+    if (authority != null && !headers.containsKey("host")) {
+      headers.put("host", authority);
+    }
+    String contentLength = headers.get("content-length");
+    if (contentLength != null) {
+      try {
+        stream.expectedLength = Long.parseLong(contentLength);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid content-length");
+      }
+      if (stream.expectedLength < 0) {
+        throw new IllegalArgumentException("Invalid content-length");
+      }
+    }
+
+    HttpRequest req = new HttpRequest(method, path, "HTTP/2.0");
+    req.setHeaders(headers);
+    return req;
+  }
+
+  private static String first(String current, String value) {
+    if (current != null) {
+      throw new IllegalArgumentException("Repeated pseudo-header");
+    }
+    return value;
+  }
+
+  // -------------------------------------------------------
+  // Streams
+
+  // Runs the routes on the worker pool; the response comes back to the event loop
+  private void dispatch(Stream stream, HttpRequest req) {
+    if (!HttpRequestParser.VALID_METHODS.contains(req.getMethod())) {
+      respond(stream, server.errorResponse(400, "Bad Request"));
+      return;
+    }
+    running++; // until the handler returns, even if the client resets the stream meanwhile
+    try {
+      server.getExecutor().execute(() -> {
+        HttpResponse res = run(req);
+        conn.execute(() -> {
+          running--;
+          respond(stream, res);
+        });
+      });
+    } catch (RejectedExecutionException e) {
+      running--;
+      respond(stream, server.errorResponse(503, "Service Unavailable"));
+    }
+  }
+
+  private HttpResponse run(HttpRequest req) {
+    try {
+      return server.handle(req, true, null);
+    } catch (IllegalArgumentException e) {
+      return server.errorResponse(400, "Bad Request");
+    } catch (Exception e) {
+      return server.errorResponse(500, "Internal Server Error");
+    }
+  }
+
+  // Sends the response head and queues the body behind the other streams' DATA
+  private void respond(Stream stream, HttpResponse res) {
+    UpgradeHandler upgrade = res.getUpgrade();
+    if (closed || stream.closed) {
+      if (upgrade != null) {
+        upgrade.onClose();
+      }
+      return;
+    }
+    if (upgrade != null && res.getStatusCode() == 101) {
+      upgrade.onClose();
+      resetStream(stream.id, HTTP_1_1_REQUIRED); // WebSocket: the client may retry over HTTP/1.1
+      return;
+    }
+
+    int status = res.getStatusCode();
+    boolean bodyless = status < 200 || status == 204 || status == 304;
+    byte[] body = bodyless ? new byte[0] : res.encodedBody();
+    File file = bodyless ? null : res.getFileBody();
+    long length = file != null ? res.getFileLength() : body.length;
+    if (file != null && length > 0) {
+      try {
+        stream.file = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      } catch (IOException e) {
+        resetStream(stream.id, INTERNAL_ERROR);
+        return;
+      }
+    }
+
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    encoder.startBlock(head);
+    encoder.encode(head, ":status", Integer.toString(status), true);
+    boolean hasContentType = false;
+    boolean hasContentLength = false;
+    for (Map.Entry<String, String> header : res.getHeaders().entrySet()) {
+      String name = header.getKey().toLowerCase();
+      if (CONNECTION_HEADERS.contains(name)) {
+        continue;
+      }
+      hasContentType |= name.equals("content-type");
+      hasContentLength |= name.equals("content-length");
+      encoder.encode(head, name, header.getValue(), !NOT_INDEXED.contains(name));
+    }
+    if (!bodyless && !hasContentType) {
+      encoder.encode(head, "content-type", "text/plain; charset=UTF-8", true);
+    }
+    if (upgrade != null) {
+      // Server-Sent Events: the stream stays open, the handler sends its events as DATA
+      writeHeaders(stream.id, head.toByteArray(), false);
+      stream.upgrade = upgrade;
+      stream.chunks = new ArrayDeque<>();
+      upgrade.onOpen(stream.new StreamConnection());
+      return;
+    }
+    if (!bodyless && !hasContentLength) {
+      encoder.encode(head, "content-length", Long.toString(length), false);
+    }
+    writeHeaders(stream.id, head.toByteArray(), length == 0);
+
+    if (length == 0) {
+      finishResponse(stream);
+      return;
+    }
+    stream.data = body;
+    stream.remaining = length;
+    sending.add(stream);
+    pump();
+  }
+
+  // HEADERS, then CONTINUATION frames for a block larger than one frame
+  private void writeHeaders(int streamId, byte[] encoded, boolean endStream) {
+    int offset = 0;
+    int type = HEADERS;
+    do {
+      int length = Math.min(MAX_FRAME_SIZE, encoded.length - offset);
+      int flags = offset + length == encoded.length ? END_HEADERS : 0;
+      if (type == HEADERS && endStream) {
+        flags |= END_STREAM;
+      }
+      writeFrame(type, flags, streamId, encoded, offset, length);
+      offset += length;
+      type = CONTINUATION;
+    } while (offset < encoded.length);
+  }
+
+  // Sends response DATA while the windows and the write queue allow, one frame per stream in turn
+  private void pump() {
+    while (!closed && sendWindow > 0 && !sending.isEmpty() && conn.getQueuedBytes() < MAX_QUEUED) {
+      Stream stream = sending.poll();
+      if (stream.remaining == 0 && !stream.ended) {
+        continue; // streamed response waiting for the handler, back in the queue with its next send
+      }
+      if (stream.remaining > 0 && stream.sendWindow <= 0) {
+        stream.blocked = true; // back in the queue with its next WINDOW_UPDATE
+        continue;
+      }
+      int length = (int) Math.min(Math.min(stream.remaining, MAX_FRAME_SIZE),
+          Math.min(sendWindow, stream.sendWindow));
+      ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+      boolean last = length == stream.remaining && (stream.upgrade == null || stream.ended);
+      putFrameHeader(frame, length, DATA, last ? END_STREAM : 0, stream.id);
+      try {
+        stream.read(frame);
+      } catch (IOException e) {
+        resetStream(stream.id, INTERNAL_ERROR);
+        continue;
+      }
+      frame.flip();
+      conn.send(frame, Long.MAX_VALUE);
+      sendWindow -= length;
+      stream.sendWindow -= length;
+      stream.remaining -= length;
+      if (last) {
+        finishResponse(stream);
+      } else {
+        sending.add(stream);
+      }
+    }
+  }
+
+  // The response is complete: a request body nobody read is cancelled (RFC 9113 8.1)
+  private void finishResponse(Stream stream) {
+    if (!stream.remoteClosed) {
+      writeRstStream(stream.id, NO_ERROR);
+    }
+    answered++;
+    closeStream(stream, null);
+  }
+
+  private void resetStream(int streamId, int code) {
+    writeRstStream(streamId, code);
+    Stream stream = streams.get(streamId);
+    if (stream != null) {
+      closeStream(stream, new IOException("Stream reset (error " + code + ")"));
+    }
+  }
+
+  private void closeStream(Stream stream, IOException failure) {
+    stream.close(failure);
+    streams.remove(stream.id);
+    sending.remove(stream);
+    if (goingAway && streams.isEmpty()) {
+      close();
+    }
+  }
+
+  private void goAway(int code, String message) {
+    if (closed) {
+      return;
+    }
+    byte[] debug = message != null ? message.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    ByteBuffer payload = ByteBuffer.allocate(8 + debug.length);
+    payload.putInt(lastStreamId).putInt(code).put(debug);
+    writeFrame(GOAWAY, 0, 0, payload.array());
+    close();
+  }
+
+  private void close() {
+    closed = true;
+    conn.close(); // after the queued frames; onClose() follows
+  }
+
+  // -------------------------------------------------------
+  // Outgoing frames
+
+  private void writeFrame(int type, int flags, int streamId, byte[] payload) {
+    writeFrame(type, flags, streamId, payload, 0, payload.length);
+  }
+
+  private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+    putFrameHeader(frame, length, type, flags, streamId);
+    frame.put(payload, offset, length).flip();
+    conn.send(frame, Long.MAX_VALUE);
+  }
+
+  private void writeRstStream(int streamId, int code) {
+    writeFrame(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(code).array());
+  }
+
+  private void writeWindowUpdate(int streamId, int increment) {
+    writeFrame(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+  }
+
+  private static void putFrameHeader(ByteBuffer frame, int length, int type, int flags, int streamId) {
+    frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+    frame.put((byte) type).put((byte) flags).putInt(streamId);
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  // One request / response exchange; touched only by the event loop, except where noted
+  private final class Stream {
+    final int id;
+    boolean remoteClosed = false; // the client sent END_STREAM
+    volatile boolean closed = false;
+
+    // Request body
+    BodyPipe body;
+    long expectedLength = -1; // content-length, -1 when absent
+    long received = 0;
+    int receiveWindow = DEFAULT_WINDOW;
+    int receiveUnacked = 0;
+
+    // Response body
+    long sendWindow = peerInitialWindow;
+    boolean blocked = false;
+    byte[] data;
+    int dataOffset = 0;
+    FileChannel file;
+    long filePosition = 0;
+    long remaining = 0; // bytes ready to send
+    UpgradeHandler upgrade; // streamed response (Server-Sent Events)
+    ArrayDeque<ByteBuffer> chunks; // written by the handler, not framed yet
+    volatile boolean ended = false; // the handler closed the streamed response
+    long queued = 0; // bytes accepted by StreamConnection.send() and not framed yet, guarded by this
+
+    Stream(int id) {
+      this.id = id;
+    }
+
+    // Bytes read by the handler (or padding): the client may send that much more
+    void consumed(int count) {
+      receiveUnacked += count;
+      if (!closed && !remoteClosed && receiveUnacked >= DEFAULT_WINDOW / 2) {
+        writeWindowUpdate(id, receiveUnacked);
+        receiveWindow += receiveUnacked;
+        receiveUnacked = 0;
+      }
+    }
+
+    void unblock() {
+      if (blocked && sendWindow > 0) {
+        blocked = false;
+        sending.add(this);
+      }
+    }
+
+    // Fills the rest of the frame with the next body bytes
+    void read(ByteBuffer frame) throws IOException {
+      if (chunks != null) {
+        int length = frame.remaining();
+        while (frame.hasRemaining()) {
+          ByteBuffer chunk = chunks.peek();
+          ByteBuffer part = chunk.duplicate();
+          part.limit(part.position() + Math.min(part.remaining(), frame.remaining()));
+          chunk.position(part.limit());
+          frame.put(part);
+          if (!chunk.hasRemaining()) {
+            chunks.poll();
+          }
+        }
+        synchronized (this) {
+          queued -= length;
+        }
+        return;
+      }
+      if (file == null) {
+        int length = frame.remaining();
+        frame.put(data, dataOffset, length);
+        dataOffset += length;
+        return;
+      }
+      while (frame.hasRemaining()) {
+        int read = file.read(frame, filePosition);
+        if (read <= 0) {
+          throw new IOException("File shrank while being sent");
+        }
+        filePosition += read;
+      }
+    }
+
+    void close(IOException failure) {
+      closed = true;
+      if (body != null && failure != null) {
+        body.fail(failure);
+      }
+      if (upgrade != null) {
+        UpgradeHandler handler = upgrade;
+        upgrade = null;
+        handler.onClose();
+      }
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException ignored) {
+        }
+        file = null;
+      }
+    }
+
+    // The stream as seen by an SseStream, from any thread
+    final class StreamConnection implements UpgradedConnection {
+
+      @Override
+      public boolean send(ByteBuffer data, long maxQueued) {
+        int size = data.remaining();
+        synchronized (Stream.this) {
+          if (closed || ended || (queued > 0 && queued + size > maxQueued)) {
+            return false;
+          }
+          queued += size;
+        }
+        conn.execute(() -> {
+          if (closed || Http2Connection.this.closed) {
+            return;
+          }
+          chunks.add(data);
+          schedule(size);
+        });
+        return true;
+      }
+
+      @Override
+      public long getQueuedBytes() {
+        synchronized (Stream.this) {
+          return queued;
+        }
+      }
+
+      @Override
+      public void execute(Runnable task) {
+        conn.execute(task);
+      }
+
+      @Override
+      public boolean isOpen() {
+        return !closed && conn.isOpen();
+      }
+
+      // Ends the stream once the queued events are sent
+      @Override
+      public void close() {
+        conn.execute(() -> {
+          if (!closed && !ended) {
+            ended = true;
+            schedule(0);
+          }
+        });
+      }
+
+      @Override
+      public void abort() {
+        conn.execute(() -> {
+          if (!closed) {
+            resetStream(id, CANCEL);
+          }
+        });
+      }
+    }
+
+    // More streamed bytes (or the end of the stream) are ready to be framed
+    private void schedule(int size) {
+      remaining += size;
+      if (!blocked && !sending.contains(this)) {
+        sending.add(this);
+      }
+      pump();
+    }
+  }
+
+  // Connection error: answered with GOAWAY, then the connection is closed
+  static final class Http2Exception extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final int code;
+
+    Http2Exception(int code, String message) {
+      super(message);
+      this.code = code;
+    }
+  }
+
+}
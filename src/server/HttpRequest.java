@@ -1,5 +1,17 @@
 package server;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -9,10 +21,15 @@ public class HttpRequest {
   private String path;
   private String version;
   private Map<String, String> headers = new HashMap<>();
-  private String body;
+  private String body; // loaded lazily from requestBody by getBody()
+  private byte[] bodyBytes; // raw bytes behind body, when it was read from the connection
+  private RequestBody requestBody; // streamed from the connection, null when there is no body
   private Map<String, Object> parsedBody;
-  private Map<String, String> queryParams;
+  private boolean bodyParsed = false; // parsedBody is computed on first use
+  private Map<String, String> queryParams; // parsed from path on first use
   private Map<String, String> pathParams;
+  private String remoteAddress; // client IP, null when unknown
+  private JsonCodec jsonCodec = GsonCodec.shared();
 
   public HttpRequest() {
   }
@@ -52,6 +69,15 @@ public class HttpRequest {
     this.version = version;
   }
 
+  // IP address of the client connection (for logs), null when unknown
+  public String getRemoteAddress() {
+    return remoteAddress;
+  }
+
+  void setRemoteAddress(String remoteAddress) {
+    this.remoteAddress = remoteAddress;
+  }
+
   public Map<String, String> getHeaders() {
     return headers;
   }
@@ -72,20 +98,129 @@ public class HttpRequest {
     headers.remove(key);
   }
 
+  // Whole body as text (charset from Content-Type, UTF-8 by default).
+  // Convenience for small bodies: it is read into memory on first call, within the body limit.
   public String getBody() {
+    if (body == null) {
+      if (requestBody == null) {
+        return "";
+      }
+      try {
+        bodyBytes = requestBody.readFully();
+        body = new String(bodyBytes, charset());
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to read request body", e);
+      }
+    }
     return body;
   }
 
   public void setBody(String body) {
     this.body = body;
+    this.bodyBytes = null;
+  }
+
+  // Body as a stream, read straight from the connection (Transfer-Encoding: chunked is decoded).
+  // Throws PayloadTooLargeException once more than getMaxBodySize() bytes are read.
+  public InputStream getBodyStream() {
+    if (body != null) {
+      return new ByteArrayInputStream(bodyBytes != null ? bodyBytes : body.getBytes(charset()));
+    }
+    return requestBody != null ? requestBody : InputStream.nullInputStream();
+  }
+
+  public ReadableByteChannel getBodyChannel() {
+    return Channels.newChannel(getBodyStream());
+  }
+
+  // Declared Content-Length, -1 for chunked bodies, 0 without a body
+  public long getContentLength() {
+    return requestBody != null ? requestBody.getContentLength() : 0;
+  }
+
+  public boolean hasBody() {
+    return requestBody != null || (body != null && !body.isEmpty());
+  }
+
+  // Upper bound for the body, set by the server (setMaxBodySize) and by BodyLimit
+  public void setMaxBodySize(long maxBytes) {
+    if (requestBody != null) {
+      requestBody.setLimit(maxBytes);
+    }
+  }
+
+  public long getMaxBodySize() {
+    return requestBody != null ? requestBody.getLimit() : 0;
+  }
+
+  RequestBody getRequestBody() {
+    return requestBody;
   }
 
+  void setRequestBody(RequestBody requestBody) {
+    this.requestBody = requestBody;
+  }
+
+  private Charset charset() {
+    String contentType = headers.get("Content-Type");
+    int index = contentType != null ? contentType.toLowerCase().indexOf("charset=") : -1;
+    if (index != -1) {
+      String name = contentType.substring(index + 8).split(";")[0].trim().replace("\"", "");
+      try {
+        return Charset.forName(name);
+      } catch (IllegalCharsetNameException | UnsupportedCharsetException ignored) {
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  // JSON body bound to a class, e.g. Cat cat = req.bodyAs(Cat.class); null for an empty body.
+  // Invalid JSON throws IllegalArgumentException, which the server answers with 400.
+  public <T> T bodyAs(Class<T> type) {
+    return jsonCodec.read(getBody(), type);
+  }
+
+  // Generic types: req.bodyAs(new TypeToken<List<Cat>>() {}.getType())
+  public <T> T bodyAs(Type type) {
+    return jsonCodec.read(getBody(), type);
+  }
+
+  public JsonCodec getJsonCodec() {
+    return jsonCodec;
+  }
+
+  void setJsonCodec(JsonCodec jsonCodec) {
+    this.jsonCodec = jsonCodec;
+  }
+
+  // JSON object or form fields of the body, parsed on first call (null for other content types).
+  // Invalid JSON throws IllegalArgumentException, which the server answers with 400.
   public Map<String, Object> getParsedBody() {
+    if (!bodyParsed) {
+      parsedBody = parseBody();
+      bodyParsed = true;
+    }
     return this.parsedBody;
   }
 
+  private Map<String, Object> parseBody() {
+    String contentType = headers.get("Content-Type");
+    if (contentType == null || !hasBody()) {
+      return null;
+    }
+    if (contentType.contains("application/json")) {
+      String json = getBody();
+      return json.isEmpty() ? null : jsonCodec.read(json, Map.class);
+    }
+    if (contentType.contains("application/x-www-form-urlencoded")) {
+      return new HashMap<>(parseUrlEncoded(getBody()));
+    }
+    return null;
+  }
+
   public int getIntFromBody(String key) {
-    Object val = parsedBody.get(key);
+    Map<String, Object> parsedBody = getParsedBody();
+    Object val = parsedBody != null ? parsedBody.get(key) : null;
     if (val instanceof Number) return ((Number) val).intValue();
     if (val instanceof String) return Integer.parseInt((String) val);
     return 0;
@@ -93,6 +228,7 @@ public class HttpRequest {
 
   public void setParsedBody(Map<String, Object> parsedBody) {
     this.parsedBody = parsedBody;
+    this.bodyParsed = true;
   }
 
   public void setPathParams(Map<String, String> pathParams) {
@@ -117,26 +253,12 @@ public class HttpRequest {
   //   return gson.fromJson(this.body, Map.class);
   // }
 
+  // Query string of the path, decoded on first call; the path itself is left as it is
   public Map<String, String> getQueryParams() {
-    if (queryParams != null)
-      return queryParams;
-
-    queryParams = new HashMap<>();
-
-    int qIndex = path.indexOf("?");
-    if (qIndex == -1)
-      return queryParams;
-
-    String query = path.substring(qIndex + 1);
-    path = path.substring(0, qIndex);
-
-    for (String pair : query.split("&")) {
-      String[] kv = pair.split("=", 2);
-      if (kv.length == 2) {
-        queryParams.put(kv[0], kv[1]);
-      }
+    if (queryParams == null) {
+      int qIndex = path.indexOf('?');
+      queryParams = qIndex == -1 ? new HashMap<>() : parseUrlEncoded(path.substring(qIndex + 1));
     }
-
     return queryParams;
   }
 
@@ -145,6 +267,45 @@ public class HttpRequest {
     return queryParams != null ? queryParams.get(key) : null;
   }
 
+  // "a=1&b=x+y&flag" -> {a=1, b=x y, flag=}; the last value of a repeated name wins
+  static Map<String, String> parseUrlEncoded(String text) {
+    Map<String, String> result = new HashMap<>();
+    int start = 0;
+    while (start <= text.length()) {
+      int end = text.indexOf('&', start);
+      if (end == -1) {
+        end = text.length();
+      }
+      if (end > start) {
+        int equals = text.indexOf('=', start);
+        String name;
+        String value;
+        if (equals == -1 || equals > end) {
+          name = decode(text.substring(start, end));
+          value = "";
+        } else {
+          name = decode(text.substring(start, equals));
+          value = decode(text.substring(equals + 1, end));
+        }
+        result.put(name, value);
+      }
+      start = end + 1;
+    }
+    return result;
+  }
+
+  // Percent / '+' decoding; a malformed escape is kept as it was sent
+  private static String decode(String text) {
+    if (text.indexOf('%') == -1 && text.indexOf('+') == -1) {
+      return text;
+    }
+    try {
+      return URLDecoder.decode(text, StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      return text;
+    }
+  }
+
   public String serialize() {
     StringBuilder sb = new StringBuilder();
     sb.append(method).append(" ").append(path).append(" ").append(version).append("\r\n");
@@ -0,0 +1,85 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+// Incremental request decoder for the NIO engine.
+// Bytes accumulate in the connection's ByteBuffer; decode() returns a request
+// once its head is available, or null to wait for more data. A body that is not
+// complete yet is left to the connection, which streams it to the handler.
+class HttpRequestDecoder {
+
+  static final int MAX_HEAD_SIZE = HttpRequestParser.MAX_HEAD_SIZE;
+
+  // bytes of the pending request already scanned for the end of the head
+  private int scanned = 0;
+  private BodyDecoder pendingBody;
+  private String remoteAddress; // client IP, set on every decoded request
+
+  // buffer must be a heap buffer in read mode (flipped); consumed bytes advance its position
+  HttpRequest decode(ByteBuffer buffer) throws IllegalArgumentException {
+    byte[] array = buffer.array();
+    int offset = buffer.arrayOffset();
+    int start = offset + buffer.position();
+    int limit = offset + buffer.limit();
+
+    // tolerate empty lines before the request line (RFC 7230 3.5)
+    while (scanned == 0 && limit - start >= 2 && array[start] == '\r' && array[start + 1] == '\n') {
+      start += 2;
+      buffer.position(start - offset);
+    }
+
+    int headEnd = HttpRequestParser.indexOfHeadEnd(array, start + Math.max(0, scanned - 3), limit);
+    if (headEnd == -1) {
+      scanned = limit - start;
+      if (scanned > MAX_HEAD_SIZE) {
+        throw new IllegalArgumentException("Request head is too big");
+      }
+      return null;
+    }
+
+    HttpRequest req = HttpRequestParser.parseHead(array, start, headEnd);
+    req.setRemoteAddress(remoteAddress);
+    BodyDecoder body = BodyDecoder.forRequest(req);
+    int bodyStart = headEnd + 4;
+
+    if (body != null && !body.isChunked() && body.contentLength() <= limit - bodyStart) {
+      // small body that arrived with the head: hand it over in one piece
+      int length = (int) body.contentLength();
+      byte[] data = new byte[length];
+      System.arraycopy(array, bodyStart, data, 0, length);
+      req.setRequestBody(new RequestBody.Buffered(data, HttpRequestParser.MAX_BODY_SIZE));
+      bodyStart += length;
+      body = null;
+    }
+    // otherwise the connection streams the rest of the body (see pendingBody())
+    pendingBody = body;
+    buffer.position(bodyStart - offset);
+
+    scanned = 0;
+    return req;
+  }
+
+  void setRemoteAddress(String remoteAddress) {
+    this.remoteAddress = remoteAddress;
+  }
+
+  // Framing of the body following the last decoded head, null when it was already complete
+  BodyDecoder pendingBody() {
+    BodyDecoder body = pendingBody;
+    pendingBody = null;
+    return body;
+  }
+
+  // Puts the last decoded request back: the next decode() parses it again from position
+  void rewind(ByteBuffer buffer, int position) {
+    buffer.position(position);
+    scanned = 0;
+    pendingBody = null;
+  }
+
+  // Largest read buffer a connection may need: bodies are streamed, only heads are held
+  static int maxRequestSize() {
+    return 2 * MAX_HEAD_SIZE;
+  }
+
+}
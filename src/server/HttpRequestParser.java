@@ -1,128 +1,340 @@
 package server;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
+// Blocking request parser, one per connection.
+// Bytes are read in bulk into a reusable buffer; bytes past the current request
+// (keep-alive / pipelined requests) stay in the buffer for the next parseRequest().
 public class HttpRequestParser {
 
-  private Socket client; 
   private InputStream inputStream;
+  private OutputStream outputStream; // for "100 Continue", null when parsing a plain stream
 
   static final Set<String> VALID_METHODS = Set.of("GET", "POST", "PUT", "PATCH", "DELETE", "OPTIONS");
-  static final int MAX_BODY_SIZE = 1024 * 1024;
+  static final int MAX_BODY_SIZE = 1024 * 1024; // default limit for request bodies
+  static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  static final int MAX_HEAD_SIZE = 64 * 1024;
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  private static final byte[] PREFACE_LINE = "PRI * HTTP/2.0".getBytes(StandardCharsets.US_ASCII);
+
+  // Canonical instances so the common names are not allocated per request
+  private static final String[] METHODS = { "GET", "POST", "PUT", "PATCH", "DELETE", "OPTIONS" };
+  private static final String[] VERSIONS = { "HTTP/1.1", "HTTP/1.0" };
+  private static final String[] COMMON_HEADERS = {
+      "Host", "Connection", "Content-Length", "Content-Type", "Accept", "Accept-Encoding",
+      "Accept-Language", "User-Agent", "Authorization", "Cookie", "Cache-Control", "Referer",
+      "Origin", "If-None-Match", "If-Modified-Since", "Transfer-Encoding", "Upgrade", "Pragma"
+  };
+
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+  private int start = 0; // first unconsumed byte
+  private int end = 0; // end of buffered data
+  private int scanned = 0; // bytes after start already searched for the end of the head
+  private BodyStream body; // body of the last request, must be consumed before the next one
+  private String remoteAddress; // set on every request, null when parsing a plain stream
 
   public HttpRequestParser(Socket client) throws IOException {
-    this.client = client;
-    this.inputStream = client.getInputStream();
+    this(client.getInputStream());
+    this.outputStream = client.getOutputStream();
+    this.remoteAddress = client.getInetAddress().getHostAddress();
   }
 
+  HttpRequestParser(InputStream inputStream) {
+    this.inputStream = inputStream;
+  }
+
+  // Returns null when the client closed the connection before sending a new request.
+  // The body is not read here: it is streamed by HttpRequest.getBodyStream() / getBody().
   public HttpRequest parseRequest() throws IllegalArgumentException, IOException {
+    if (body != null && !body.isComplete()) {
+      throw new IllegalStateException("The body of the previous request was not consumed");
+    }
+    body = null;
 
-    HttpRequest req = new HttpRequest();
-    String[] firstLineParts = readRequestLine();
-    req.setMethod(firstLineParts[0]);
-    req.setPath(firstLineParts[1]);
-    req.setVersion(firstLineParts[2]);
+    int headEnd = readHead();
+    if (headEnd == -1) {
+      return null;
+    }
+    HttpRequest req = parseHead(buffer, start, headEnd);
+    req.setRemoteAddress(remoteAddress);
+    start = headEnd + 4;
+    scanned = 0;
 
-    Map<String, String> headers = readHeaders();
-    req.setHeaders(headers);
+    BodyDecoder decoder = BodyDecoder.forRequest(req);
+    if (decoder != null) {
+      body = new BodyStream(decoder, expectsContinue(req));
+      req.setRequestBody(body);
+    }
+    return req;
+  }
+
+  static boolean expectsContinue(HttpRequest req) {
+    String expect = req.getHeader("Expect");
+    return expect != null && expect.equalsIgnoreCase("100-continue") && "HTTP/1.1".equals(req.getVersion());
+  }
+
+  // True when the head of another (pipelined) request is already in the buffer
+  boolean hasBufferedRequest() {
+    if (body != null && !body.isComplete()) {
+      return false;
+    }
+    return indexOfHeadEnd(buffer, start, end) != -1;
+  }
+
+  // Hands over the bytes read past the last request (the connection leaves HTTP)
+  ByteBuffer takeBuffered() {
+    ByteBuffer rest = ByteBuffer.wrap(Arrays.copyOfRange(buffer, start, end));
+    start = end = 0;
+    return rest;
+  }
+
+  // Buffers data until "\r\n\r\n" is found, returns its index (or -1 on a clean close)
+  private int readHead() throws IOException {
+    while (true) {
+      // tolerate empty lines before the request line (RFC 7230 3.5)
+      while (scanned == 0 && end - start >= 2 && buffer[start] == '\r' && buffer[start + 1] == '\n') {
+        start += 2;
+      }
 
-    if (headers.containsKey("Content-Length")) {
-      int length = Integer.parseInt(headers.get("Content-Length"));
-      if (length < 0 || length > MAX_BODY_SIZE) {
-        throw new IllegalArgumentException("Content-Length is too big");
+      int headEnd = indexOfHeadEnd(buffer, start + Math.max(0, scanned - 3), end);
+      if (headEnd != -1) {
+        return headEnd;
+      }
+      scanned = end - start;
+      if (scanned > MAX_HEAD_SIZE) {
+        throw new IllegalArgumentException("Request head is too big");
+      }
+
+      if (fill() == -1) {
+        if (end == start) {
+          return -1;
+        }
+        throw new IOException("Unexpected end of stream while reading headers");
       }
-      String body = readBody(length);
-      req.setBody(body);
-    } else {
-      req.setBody("");
     }
+  }
 
-    return req;
+  // Body bytes come from the buffer first, then from the socket; bytes of the
+  // next (pipelined) request are left in the buffer
+  private final class BodyStream extends RequestBody {
+    private final BodyDecoder decoder;
+    private boolean sendContinue;
+
+    BodyStream(BodyDecoder decoder, boolean sendContinue) {
+      super(decoder.contentLength(), MAX_BODY_SIZE);
+      this.decoder = decoder;
+      this.sendContinue = sendContinue;
+    }
+
+    @Override
+    protected int readBody(byte[] b, int off, int len) throws IOException {
+      while (true) {
+        start = decoder.skipFraming(buffer, start, end);
+        if (decoder.isDone()) {
+          return -1;
+        }
+        long available = decoder.remaining();
+        if (available > 0 && start < end) {
+          int count = (int) Math.min(len, Math.min(available, end - start));
+          System.arraycopy(buffer, start, b, off, count);
+          start += count;
+          decoder.consumed(count);
+          return count;
+        }
+
+        // buffer drained
+        start = end = 0;
+        if (sendContinue) {
+          sendContinue = false;
+          if (outputStream != null) {
+            outputStream.write(CONTINUE);
+            outputStream.flush();
+          }
+        }
+        if (available >= len && len >= INITIAL_BUFFER_SIZE) {
+          // large reads skip the buffer
+          int read = inputStream.read(b, off, len);
+          if (read == -1) {
+            throw new IOException("Unexpected end of stream while reading body");
+          }
+          decoder.consumed(read);
+          return read;
+        }
+        if (fill() == -1) {
+          throw new IOException("Unexpected end of stream while reading body");
+        }
+      }
+    }
   }
 
-  // Reads request method, path and version + validation
-  private String[] readRequestLine() throws IOException, IllegalArgumentException {
-    String line = readLine(inputStream);
+  // Reads as much as is available into the buffer, compacting or growing it first
+  private int fill() throws IOException {
+    if (end == buffer.length) {
+      if (start > 0) {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+      } else {
+        byte[] bigger = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, bigger, 0, end);
+        buffer = bigger;
+      }
+    }
+    int read = inputStream.read(buffer, end, buffer.length - end);
+    if (read > 0) {
+      end += read;
+    }
+    return read;
+  }
 
-    if (line == null || line.isEmpty()) {
-      throw new IllegalArgumentException("Empty request");
+  // -------------------------------------------------------
+  // Byte level parsing, shared with HttpRequestDecoder
+
+  // Index of the "\r\n\r\n" in [from, to), -1 if absent
+  static int indexOfHeadEnd(byte[] b, int from, int to) {
+    for (int i = from; i + 3 < to; i++) {
+      if (b[i + 3] == '\n' && b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r') {
+        return i;
+      }
     }
+    return -1;
+  }
 
-    String[] parts = line.split(" ");
-    if (parts.length != 3) {
+  // Parses request line + headers in [from, headEnd) without copying whole lines
+  static HttpRequest parseHead(byte[] b, int from, int headEnd) throws IllegalArgumentException {
+    int lineEnd = indexOfCRLF(b, from, headEnd);
+    int sp1 = indexOf(b, (byte) ' ', from, lineEnd);
+    int sp2 = sp1 == -1 ? -1 : indexOf(b, (byte) ' ', sp1 + 1, lineEnd);
+    if (from == lineEnd) {
+      throw new IllegalArgumentException("Empty request");
+    }
+    if (sp2 == -1 || indexOf(b, (byte) ' ', sp2 + 1, lineEnd) != -1) {
       throw new IllegalArgumentException("Invalid Request line: should have 3 parts");
     }
-    if (!VALID_METHODS.contains(parts[0])) {
-      throw new IllegalArgumentException("Invalid HTTP method: " + parts[0]);
+    if (lineEnd - from == PREFACE_LINE.length && Arrays.equals(b, from, lineEnd, PREFACE_LINE, 0, PREFACE_LINE.length)) {
+      // start of the HTTP/2 connection preface (prior knowledge), see Http2Connection
+      HttpRequest preface = new HttpRequest("PRI", "*", "HTTP/2.0");
+      preface.setHeaders(new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+      return preface;
     }
-    if (!parts[1].startsWith("/")) {
-      throw new IllegalArgumentException("Invalid path: " + parts[1]);
+
+    String method = match(METHODS, b, from, sp1, false);
+    if (method == null) {
+      throw new IllegalArgumentException(
+          "Invalid HTTP method: " + new String(b, from, sp1 - from, StandardCharsets.UTF_8));
+    }
+    if (sp2 == sp1 + 1 || b[sp1 + 1] != '/') {
+      throw new IllegalArgumentException(
+          "Invalid path: " + new String(b, sp1 + 1, sp2 - sp1 - 1, StandardCharsets.UTF_8));
+    }
+    String path = new String(b, sp1 + 1, sp2 - sp1 - 1, StandardCharsets.UTF_8);
+    String version = match(VERSIONS, b, sp2 + 1, lineEnd, false);
+    if (version == null) {
+      version = new String(b, sp2 + 1, lineEnd - sp2 - 1, StandardCharsets.UTF_8);
     }
-    return parts;
 
-  }
+    HttpRequest req = new HttpRequest(method, path, version);
+    // Header names are case-insensitive (RFC 7230 3.2)
+    Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 
-  private Map<String, String> readHeaders() throws IOException {
-    Map<String, String> headers = new HashMap<>();
-    while (true) {
-      String line = readLine(inputStream);
-      if (line.isEmpty()) {
-        break;
-      }
-      int colonIndex = line.indexOf(":");
-      if (colonIndex == -1) {
-        continue;
+    int pos = lineEnd + 2;
+    while (pos < headEnd) {
+      lineEnd = indexOfCRLF(b, pos, headEnd);
+      int colon = indexOf(b, (byte) ':', pos, lineEnd);
+      if (colon != -1) {
+        // "Transfer-Encoding : chunked" or a folded line would name a header a proxy does not see
+        // (RFC 7230 3.2.4)
+        if (skipSpaces(b, pos, colon) != pos || trimEnd(b, pos, colon) != colon) {
+          throw new IllegalArgumentException("Whitespace in header name");
+        }
+        int nameStart = pos;
+        int nameEnd = colon;
+        int valueStart = skipSpaces(b, colon + 1, lineEnd);
+        int valueEnd = trimEnd(b, valueStart, lineEnd);
+
+        String name = match(COMMON_HEADERS, b, nameStart, nameEnd, true);
+        if (name == null) {
+          name = new String(b, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+        }
+        String value = new String(b, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+        // two lengths could frame the body differently here and in a proxy in front (RFC 7230 3.3.3)
+        if (name.equalsIgnoreCase("Content-Length") && headers.containsKey(name)) {
+          throw new IllegalArgumentException("Duplicate Content-Length");
+        }
+        headers.put(name, value);
       }
-      String name = line.substring(0, colonIndex).trim();
-      String value = line.substring(colonIndex + 1).trim();
-      headers.put(name, value);
+      pos = lineEnd + 2;
     }
-    return headers;
+    req.setHeaders(headers);
+    return req;
   }
 
-  private String readBody(int contentLength) throws IOException {
-    byte[] bodyByte = new byte[contentLength];
-    int totalRead = 0;
+  private static int indexOfCRLF(byte[] b, int from, int to) {
+    for (int i = from; i + 1 < to; i++) {
+      if (b[i] == '\r' && b[i + 1] == '\n') {
+        return i;
+      }
+    }
+    return to;
+  }
 
-    while (totalRead < contentLength) {
-      int read = inputStream.read(bodyByte, totalRead, contentLength - totalRead);
-      if (read == -1) {
-        // clientul a închis conexiunea prea devreme
-        throw new IOException("Unexpected end of stream while reading body");
+  private static int indexOf(byte[] b, byte value, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (b[i] == value) {
+        return i;
       }
-      totalRead += read;
     }
+    return -1;
+  }
+
+  private static int skipSpaces(byte[] b, int from, int to) {
+    while (from < to && (b[from] == ' ' || b[from] == '\t')) {
+      from++;
+    }
+    return from;
+  }
 
-    return new String(bodyByte);
+  private static int trimEnd(byte[] b, int from, int to) {
+    while (to > from && (b[to - 1] == ' ' || b[to - 1] == '\t')) {
+      to--;
+    }
+    return to;
   }
 
-  private String readLine(InputStream in) throws IOException {
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-    int current;
-    boolean seenCR = false;
-    while ((current = in.read()) != -1) {
-      if (seenCR && current == '\n') {
-        break;
+  // Returns the canonical string equal to b[from, to), or null
+  private static String match(String[] candidates, byte[] b, int from, int to, boolean ignoreCase) {
+    int length = to - from;
+    for (String candidate : candidates) {
+      if (candidate.length() != length) {
+        continue;
       }
-
-      if (current == '\r') {
-        seenCR = true;
-      } else {
-        if (seenCR) {
-          buffer.write('\r');
-          seenCR = false;
+      int i = 0;
+      while (i < length) {
+        int c = b[from + i];
+        int expected = candidate.charAt(i);
+        if (c != expected && !(ignoreCase && toLower(c) == toLower(expected))) {
+          break;
         }
-        buffer.write(current);
+        i++;
+      }
+      if (i == length) {
+        return candidate;
       }
     }
-    return buffer.toString(StandardCharsets.UTF_8);
+    return null;
+  }
+
+  private static int toLower(int c) {
+    return c >= 'A' && c <= 'Z' ? c + 32 : c;
   }
 
 }
@@ -1,17 +1,63 @@
 package server;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import com.google.gson.Gson;
+import java.util.stream.Stream;
 
 public class HttpResponse {
 
+  private static final byte[] EMPTY = new byte[0];
+  private static final byte[] CRLF = { '\r', '\n' };
+  private static final byte[] DEFAULT_CONTENT_TYPE = "Content-Type: text/plain; charset=UTF-8\r\n"
+      .getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+  private static final int SINGLE_WRITE_LIMIT = 64 * 1024;
+  private static final int JSON_STREAM_FLUSH = 16 * 1024; // jsonStream() sends a chunk once this much is ready
+
+  // "Name: " prefixes of the usual response headers, encoded once
+  private static final Map<String, byte[]> HEADER_NAMES = new HashMap<>();
+  static {
+    for (String name : new String[] { "Content-Type", "Content-Length", "Content-Encoding", "Connection",
+        "Keep-Alive", "ETag", "Last-Modified", "Vary", "Cache-Control", "Location", "Set-Cookie",
+        "Transfer-Encoding", "Date", "Server" }) {
+      HEADER_NAMES.put(name, (name + ": ").getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  // Scratch buffer for the blocking write path, reused by the worker thread
+  private static final ThreadLocal<byte[]> WRITE_BUFFER = ThreadLocal.withInitial(() -> new byte[8 * 1024]);
+  // Scratch buffer json() serializes into; the body is copied out at its exact size
+  private static final ThreadLocal<byte[]> JSON_BUFFER = ThreadLocal.withInitial(() -> new byte[4 * 1024]);
+
   private int statusCode;
   private String statusMessage;
   private Map<String, String> headers = new HashMap<>();
   private String body = "";
+  private byte[] rawBody; // encoded body (JSON, static files, ...), takes precedence over body
+  private File fileBody; // streamed from disk by the connection engine, never loaded on the heap
+  private long fileLength;
+
+  // Streaming (getOutputStream / write / flush / end)
+  private Transport transport;
+  private boolean chunkedAllowed = true;
+  private ResponseStream stream;
+  private boolean streaming = false; // head sent, the body follows as it is written
+  private boolean aborted = false;
+  private UpgradeHandler upgrade; // the connection leaves HTTP/1.1 after this response (SSE, WebSocket, HTTP/2)
+  private boolean silentUpgrade = false;
+  private JsonCodec jsonCodec = GsonCodec.shared();
+  private Compression compression; // for streamed bodies, set by the server
+  private String acceptEncoding;
 
   public HttpResponse() {
     this.statusCode = 200;
@@ -56,30 +102,136 @@ public class HttpResponse {
     headers.remove(key);
   }
 
+  // Text of the body; an encoded body is decoded on demand
   public String getBody() {
+    if (rawBody != null) {
+      return new String(rawBody, StandardCharsets.UTF_8);
+    }
     return body;
   }
 
   public void setBody(String body) {
+    clearBody();
     this.body = body;
   }
 
+  public byte[] getRawBody() {
+    return rawBody;
+  }
+
+  public File getFileBody() {
+    return fileBody;
+  }
+
+  // Number of file bytes announced in Content-Length
+  long getFileLength() {
+    return fileLength;
+  }
+
+  // Human readable form, used for debug logging
   public String serialize() {
+    byte[] bodyBytes = bodyBytes();
     StringBuilder sb = new StringBuilder();
-    sb.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusMessage).append("\r\n");
+    sb.append(new String(encodeHead(bodyBytes), StandardCharsets.UTF_8));
+    if (streaming) {
+      sb.append("[streamed body: ").append(stream.getWritten()).append(" bytes]");
+    } else if (fileBody != null) {
+      sb.append("[file body: ").append(fileBody.getName()).append(", ").append(fileLength).append(" bytes]");
+    } else if (rawBody != null && !isText()) {
+      sb.append("[binary body: ").append(rawBody.length).append(" bytes]");
+    } else {
+      sb.append(new String(bodyBytes, StandardCharsets.UTF_8));
+    }
+    return sb.toString();
+  }
 
-    if (!headers.containsKey("Content-Type")) {
-      headers.put("Content-Type", "text/plain; charset=UTF-8");
+  // Status line + headers + body in one array.
+  // For a file body only the head is returned, the engine streams getFileBody() after it.
+  public byte[] toBytes() {
+    byte[] bodyBytes = bodyBytes();
+    byte[] head = encodeHead(bodyBytes);
+    if (bodyBytes.length == 0) {
+      return head;
     }
-    if (!headers.containsKey("Content-Length")) {
-      headers.put("Content-Length", String.valueOf(body.getBytes(StandardCharsets.UTF_8).length));
+    byte[] out = Arrays.copyOf(head, head.length + bodyBytes.length);
+    System.arraycopy(bodyBytes, 0, out, head.length, bodyBytes.length);
+    return out;
+  }
+
+  // Head and body as separate buffers for a gathering write; the body array is not copied
+  ByteBuffer[] toBuffers() {
+    byte[] bodyBytes = bodyBytes();
+    ByteBuffer head = ByteBuffer.wrap(encodeHead(bodyBytes));
+    if (bodyBytes.length == 0) {
+      return new ByteBuffer[] { head };
+    }
+    return new ByteBuffer[] { head, ByteBuffer.wrap(bodyBytes) };
+  }
+
+  // Blocking write path: head and (small) body go out in a single write from a reused buffer
+  void writeTo(OutputStream out) throws IOException {
+    byte[] bodyBytes = bodyBytes();
+    if (bodyBytes.length > SINGLE_WRITE_LIMIT) {
+      out.write(encodeHead(bodyBytes));
+      out.write(bodyBytes);
+      return;
+    }
+    ByteWriter writer = new ByteWriter(WRITE_BUFFER.get());
+    writeHead(writer, bodyBytes);
+    writer.write(bodyBytes);
+    out.write(writer.buffer, 0, writer.length);
+    if (writer.buffer.length <= SINGLE_WRITE_LIMIT * 2) {
+      WRITE_BUFFER.set(writer.buffer);
+    }
+  }
+
+  private byte[] encodeHead(byte[] bodyBytes) {
+    ByteWriter writer = new ByteWriter(new byte[256]);
+    writeHead(writer, bodyBytes);
+    return Arrays.copyOf(writer.buffer, writer.length);
+  }
+
+  private void writeHead(ByteWriter writer, byte[] bodyBytes) {
+    writer.write(HttpStatus.statusLine(statusCode, statusMessage));
+
+    // 1xx / 204 / 304 responses never carry a body (RFC 7230 3.3.2)
+    boolean bodyless = statusCode < 200 || statusCode == 304 || statusCode == 204;
+    if (!bodyless && !headers.containsKey("Content-Type")) {
+      writer.write(DEFAULT_CONTENT_TYPE);
+    }
+    if (!bodyless && !streaming && !headers.containsKey("Content-Length")) {
+      writer.write(CONTENT_LENGTH);
+      writer.writeDecimal(fileBody != null ? fileLength : bodyBytes.length);
+      writer.write(CRLF);
     }
     for (Map.Entry<String, String> header : headers.entrySet()) {
-      sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+      byte[] name = HEADER_NAMES.get(header.getKey());
+      if (name != null) {
+        writer.write(name);
+      } else {
+        writer.writeText(header.getKey());
+        writer.write((byte) ':');
+        writer.write((byte) ' ');
+      }
+      writer.writeText(header.getValue());
+      writer.write(CRLF);
     }
-    sb.append("\r\n");
-    sb.append(body != null ? body : "");
-    return sb.toString();
+    writer.write(CRLF);
+  }
+
+  private byte[] bodyBytes() {
+    if (fileBody != null) {
+      return EMPTY;
+    }
+    if (rawBody != null) {
+      return rawBody;
+    }
+    return body != null && !body.isEmpty() ? body.getBytes(StandardCharsets.UTF_8) : EMPTY;
+  }
+
+  private boolean isText() {
+    String contentType = headers.get("Content-Type");
+    return contentType == null || contentType.startsWith("text/") || contentType.startsWith("application/json");
   }
 
   public HttpResponse status(int code) {
@@ -89,16 +241,382 @@ public class HttpResponse {
   }
 
   public HttpResponse send(String body) {
+    clearBody();
     this.body = body;
     return this;
   }
 
+  public HttpResponse send(byte[] body, String contentType) {
+    clearBody();
+    this.addHeader("Content-Type", contentType);
+    this.rawBody = body;
+    return this;
+  }
+
+  // Streams the file to the client (FileChannel.transferTo), heap use does not depend on its size
+  public HttpResponse sendFile(File file, String contentType) {
+    clearBody();
+    this.addHeader("Content-Type", contentType);
+    this.fileBody = file;
+    this.fileLength = file.length();
+    return this;
+  }
+
   public HttpResponse json(Object data) {
     this.addHeader("Content-Type", "application/json; charset=UTF-8");
-    Gson gson = new Gson();
-    String body = gson.toJson(data);
-    this.body = body;
+    // serialized straight into UTF-8 bytes, no intermediate String
+    ByteWriter out = new ByteWriter(JSON_BUFFER.get());
+    try {
+      jsonCodec.write(data, out);
+    } catch (IOException e) {
+      throw new IllegalStateException("JSON serialization failed", e);
+    }
+    clearBody();
+    this.rawBody = Arrays.copyOf(out.buffer, out.length);
+    if (out.buffer.length <= SINGLE_WRITE_LIMIT) {
+      JSON_BUFFER.set(out.buffer);
+    }
     return this;
   }
 
+  // -------------------------------------------------------
+  // Streaming JSON arrays: the elements are serialized one by one and sent in chunks of about
+  // flushBytes, so memory stays bounded however long the collection is.
+  //   res.jsonStream(db.getAll());              // Iterable, Iterator or Stream
+  //   res.jsonStream(rows.stream().map(Row::toMap));
+
+  public HttpResponse jsonStream(Iterable<?> items) {
+    return jsonStream(items.iterator(), JSON_STREAM_FLUSH);
+  }
+
+  // The stream is closed at the end
+  public HttpResponse jsonStream(Stream<?> items) {
+    try (Stream<?> stream = items) {
+      return jsonStream(stream.iterator(), JSON_STREAM_FLUSH);
+    }
+  }
+
+  public HttpResponse jsonStream(Iterator<?> items) {
+    return jsonStream(items, JSON_STREAM_FLUSH);
+  }
+
+  public HttpResponse jsonStream(Iterator<?> items, int flushBytes) {
+    this.addHeader("Content-Type", "application/json; charset=UTF-8");
+    OutputStream stream = getOutputStream();
+    // elements are encoded into the scratch buffer; the codec's flush() does not reach the client,
+    // only a full batch does
+    ByteWriter out = new ByteWriter(JSON_BUFFER.get());
+    try {
+      out.write('[');
+      boolean first = true;
+      while (items.hasNext()) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        jsonCodec.write(items.next(), out);
+        if (out.length >= flushBytes) {
+          stream.write(out.buffer, 0, out.length);
+          stream.flush();
+          out.length = 0;
+        }
+      }
+      out.write(']');
+      stream.write(out.buffer, 0, out.length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (out.buffer.length <= SINGLE_WRITE_LIMIT) {
+        JSON_BUFFER.set(out.buffer);
+      }
+    }
+    end();
+    return this;
+  }
+
+  public JsonCodec getJsonCodec() {
+    return jsonCodec;
+  }
+
+  void setJsonCodec(JsonCodec jsonCodec) {
+    this.jsonCodec = jsonCodec;
+  }
+
+  // -------------------------------------------------------
+  // Streaming responses: the handler writes the body while it runs.
+  //   res.addHeader("Content-Type", "text/csv");
+  //   for (Row row : rows) { res.write(row.toCsv()); }   // sent in chunks as the buffer fills
+  //   res.end();                                         // optional, the server ends it after the handler
+
+  public OutputStream getOutputStream() {
+    if (stream == null) {
+      if (rawBody != null || fileBody != null || (body != null && !body.isEmpty())) {
+        throw new IllegalStateException("Response already has a body");
+      }
+      stream = new ResponseStream(this, transport, chunkedAllowed);
+    }
+    return stream;
+  }
+
+  public WritableByteChannel getChannel() {
+    return Channels.newChannel(getOutputStream());
+  }
+
+  public HttpResponse write(byte[] data) {
+    try {
+      getOutputStream().write(data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return this;
+  }
+
+  public HttpResponse write(String text) {
+    return write(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  // Sends the head (first time) and the buffered body bytes to the client now
+  public HttpResponse flush() {
+    try {
+      getOutputStream().flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return this;
+  }
+
+  public void end() {
+    try {
+      if (stream != null) {
+        stream.end();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // True once the head went out; status and headers can no longer change
+  public boolean isCommitted() {
+    return streaming;
+  }
+
+  // The whole body is in memory (not streamed, not a file, no protocol upgrade)
+  boolean isBuffered() {
+    return stream == null && !streaming && fileBody == null && upgrade == null;
+  }
+
+  // Encoded body shared with other responses (ResponseCache), sent as it is
+  void setRawBody(byte[] body) {
+    clearBody();
+    this.rawBody = body;
+  }
+
+  // Connection the body is streamed to, set by the engine before the handler runs
+  void bind(Transport transport, boolean chunkedAllowed) {
+    this.transport = transport;
+    this.chunkedAllowed = chunkedAllowed;
+  }
+
+  byte[] commitHead(boolean chunked) {
+    streaming = true;
+    if (chunked) {
+      headers.put("Transfer-Encoding", "chunked");
+    } else if (!headers.containsKey("Content-Length")) {
+      // without a length or chunks, the end of the body is the end of the connection
+      headers.put("Connection", "close");
+      headers.remove("Keep-Alive");
+    }
+    return encodeHead(EMPTY);
+  }
+
+  void compressWith(Compression compression, String acceptEncoding) {
+    this.compression = compression;
+    this.acceptEncoding = acceptEncoding;
+  }
+
+  Compression getCompression() {
+    return compression;
+  }
+
+  // Called when a streamed body sends its head: the encoding to compress it with, or null
+  String streamEncoding() {
+    String encoding = compression != null ? compression.choose(this, acceptEncoding, -1) : null;
+    if (encoding != null) {
+      headers.remove("Content-Length"); // the length of the plain body
+      headers.put("Content-Encoding", encoding);
+    }
+    return encoding;
+  }
+
+  // A stream ended before anything was flushed becomes a regular body
+  void completeBuffered(byte[] data) {
+    this.body = "";
+    this.rawBody = data;
+  }
+
+  // After this response the engine hands the connection to the handler instead of reading requests
+  void upgrade(UpgradeHandler handler) {
+    clearBody();
+    this.upgrade = handler;
+  }
+
+  // The connection changes protocol without an HTTP/1.1 answer (HTTP/2 prior knowledge)
+  void switchProtocol(UpgradeHandler handler) {
+    upgrade(handler);
+    this.silentUpgrade = true;
+  }
+
+  UpgradeHandler getUpgrade() {
+    return upgrade;
+  }
+
+  // Head of an upgrade response; what follows belongs to the new protocol
+  ByteBuffer[] upgradeHead() {
+    streaming = true;
+    if (silentUpgrade) {
+      return new ByteBuffer[0];
+    }
+    headers.remove("Keep-Alive");
+    return new ByteBuffer[] { ByteBuffer.wrap(encodeHead(EMPTY)) };
+  }
+
+  // Body as sent on the wire; empty for a file body, which the engine streams from disk
+  byte[] encodedBody() {
+    return bodyBytes();
+  }
+
+  // Size of the body in bytes, without encoding a text body (metrics)
+  long bodyLength() {
+    if (streaming) {
+      return stream != null ? stream.getWritten() : 0;
+    }
+    if (fileBody != null) {
+      return fileLength;
+    }
+    if (rawBody != null) {
+      return rawBody.length;
+    }
+    if (body == null) {
+      return 0;
+    }
+    long length = 0;
+    for (int i = 0; i < body.length(); i++) {
+      char c = body.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4; // with the low surrogate that follows
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  // After the handler: a stream that was never flushed is sent as a regular body
+  void completeStream() {
+    if (stream != null && !streaming) {
+      end();
+    }
+  }
+
+  // The handler failed after the head was sent: the connection must be closed
+  void abort() {
+    aborted = true;
+  }
+
+  // Ends a streamed body after the handler; false when the connection cannot be reused
+  boolean finishStream() {
+    if (aborted) {
+      return false;
+    }
+    try {
+      stream.end();
+    } catch (IOException e) {
+      return false;
+    }
+    return stream.isReusable();
+  }
+
+  private void clearBody() {
+    if (streaming) {
+      throw new IllegalStateException("Response already committed");
+    }
+    this.stream = null;
+    this.body = "";
+    this.rawBody = null;
+    this.fileBody = null;
+    this.fileLength = 0;
+  }
+
+  // Growable byte array used to assemble heads and bodies
+  static final class ByteWriter extends OutputStream {
+    byte[] buffer;
+    int length;
+
+    ByteWriter(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      ensure(1);
+      buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes) {
+      write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) {
+      ensure(count);
+      System.arraycopy(bytes, offset, buffer, length, count);
+      length += count;
+    }
+
+    // Header text is ASCII in practice; anything else falls back to UTF-8
+    void writeText(String text) {
+      int count = text.length();
+      ensure(count);
+      for (int i = 0; i < count; i++) {
+        char c = text.charAt(i);
+        if (c >= 0x80) {
+          write(text.getBytes(StandardCharsets.UTF_8));
+          return;
+        }
+        buffer[length + i] = (byte) c;
+      }
+      length += count;
+    }
+
+    void writeDecimal(long value) {
+      if (value == 0) {
+        write('0');
+        return;
+      }
+      ensure(20);
+      int start = length;
+      while (value > 0) {
+        buffer[length++] = (byte) ('0' + value % 10);
+        value /= 10;
+      }
+      for (int i = start, j = length - 1; i < j; i++, j--) {
+        byte tmp = buffer[i];
+        buffer[i] = buffer[j];
+        buffer[j] = tmp;
+      }
+    }
+
+    private void ensure(int extra) {
+      if (length + extra > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+      }
+    }
+  }
+
 }
@@ -1,22 +1,33 @@
 package server;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class HttpServer extends Router {
 
@@ -25,19 +36,147 @@ public class HttpServer extends Router {
 
   private volatile boolean isRunning = true;
   private ServerSocket serverSocket = null;
-  private final ExecutorService threadPool = Executors.newFixedThreadPool(10);
+  private ExecutorService threadPool = ServerExecutors.fixed(10);
   private boolean debug = false;
-  private Map<String, String> staticRoutes = new HashMap<>();
+  private final Engine engine;
+  private int eventLoops = 1;
+  private NioEngine nioEngine = null;
+  private NioEngine upgradeLoop = null; // BLOCKING engine: owns SSE / WebSocket connections
+  private volatile RouteTree routeTree = null; // compiled on listen(), reset when routes change
+  private final StaticFiles staticFileServer = new StaticFiles();
+  private Compression compression = null;
+  private volatile Metrics metrics = null;
+  private volatile AccessLog accessLog = null;
+  private volatile AccessLog debugLog = null; // debug output, written to stdout by its own thread
+  private JsonCodec jsonCodec = GsonCodec.shared();
+  private long maxBodySize = HttpRequestParser.MAX_BODY_SIZE;
+  private static final long DRAIN_LIMIT = 256 * 1024; // unread body bytes skipped to keep a connection
+  private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
+  // Keep-alive
+  private int keepAliveTimeout = 5000;
+  private int maxRequestsPerConnection = 100;
+  private int pipelineConcurrency = 1; // pipelined requests of one connection allowed to run at once
+  private boolean http2 = false; // cleartext HTTP/2 (prior knowledge and "Upgrade: h2c"), opt-in
+  private final Set<Socket> openConnections = ConcurrentHashMap.newKeySet();
+  final AtomicLong connectionsOpened = new AtomicLong();
+  final AtomicLong connectionsReused = new AtomicLong();
+
+  public HttpServer(Engine engine, boolean debug) {
+    this.engine = engine;
+    setDebug(debug);
+  }
+
+  public HttpServer(Engine engine) {
+    this(engine, false);
+  }
 
   public HttpServer(boolean debug) {
-    this.debug = debug;
+    this(Engine.BLOCKING, debug);
   }
 
   public HttpServer() {
+    this(Engine.BLOCKING, false);
   }
 
   public void setDebug(boolean debug) {
     this.debug = debug;
+    if (debug && debugLog == null) {
+      debugLog = new AccessLog();
+      debugLog.start();
+    }
+  }
+
+  public Engine getEngine() {
+    return engine;
+  }
+
+  // Worker pool for connections (BLOCKING) or requests (NIO), see ServerExecutors. Set before listen.
+  public void setExecutor(ExecutorService executor) {
+    if (executor == null) {
+      throw new IllegalArgumentException("executor must not be null");
+    }
+    this.threadPool.shutdown();
+    this.threadPool = executor;
+  }
+
+  public ExecutorService getExecutor() {
+    return threadPool;
+  }
+
+  // Number of selector threads used by the NIO engine (set before listen)
+  public void setEventLoops(int eventLoops) {
+    if (eventLoops < 1) {
+      throw new IllegalArgumentException("eventLoops must be at least 1");
+    }
+    this.eventLoops = eventLoops;
+  }
+
+  // Idle time (ms) a persistent connection waits for the next request before closing
+  public void setKeepAliveTimeout(int keepAliveTimeout) {
+    this.keepAliveTimeout = keepAliveTimeout;
+  }
+
+  public int getKeepAliveTimeout() {
+    return keepAliveTimeout;
+  }
+
+  // Requests served on one connection before it is closed (1 disables keep-alive)
+  public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+    if (maxRequestsPerConnection < 1) {
+      throw new IllegalArgumentException("maxRequestsPerConnection must be at least 1");
+    }
+    this.maxRequestsPerConnection = maxRequestsPerConnection;
+  }
+
+  public int getMaxRequestsPerConnection() {
+    return maxRequestsPerConnection;
+  }
+
+  // Pipelined GET / OPTIONS requests already received on a connection that may run side by side
+  // (1 = one after another). Responses are always sent in request order.
+  public void setPipelineConcurrency(int pipelineConcurrency) {
+    if (pipelineConcurrency < 1) {
+      throw new IllegalArgumentException("pipelineConcurrency must be at least 1");
+    }
+    this.pipelineConcurrency = pipelineConcurrency;
+  }
+
+  public int getPipelineConcurrency() {
+    return pipelineConcurrency;
+  }
+
+  // Cleartext HTTP/2: clients that start with the connection preface or ask for "Upgrade: h2c".
+  // Streams share the worker pool and run through the same routes and middlewares. Off by default:
+  // the preface is answered with 505 and "Upgrade: h2c" is ignored.
+  public void setHttp2(boolean http2) {
+    this.http2 = http2;
+  }
+
+  public boolean isHttp2() {
+    return http2;
+  }
+
+  // Default request body limit in bytes (1 MB); routes can raise or lower it with BodyLimit
+  public void setMaxBodySize(long maxBodySize) {
+    if (maxBodySize < 0) {
+      throw new IllegalArgumentException("maxBodySize must not be negative");
+    }
+    this.maxBodySize = maxBodySize;
+  }
+
+  public long getMaxBodySize() {
+    return maxBodySize;
+  }
+
+  // Number of TCP connections accepted so far
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  // Number of requests served on an already open connection (no new handshake)
+  public long getConnectionsReused() {
+    return connectionsReused.get();
   }
 
   // ---------------------------------------------------------
@@ -45,6 +184,8 @@ public class HttpServer extends Router {
   public void listen(int port, String host, Runnable callback) {
     this.host = host;
     this.port = port;
+    compileRoutes();
+    staticFileServer.watch();
     new Thread(() -> {
       this.run();
     }).start();
@@ -88,7 +229,7 @@ public class HttpServer extends Router {
   }
 
   public synchronized void stop() {
-    if (!this.isRunning && serverSocket != null && serverSocket.isClosed()) {
+    if (!this.isRunning && threadPool.isShutdown()) {
       return;
     }
     try {
@@ -96,6 +237,23 @@ public class HttpServer extends Router {
       if (serverSocket != null && !serverSocket.isClosed()) {
         serverSocket.close();
       }
+      if (nioEngine != null) {
+        nioEngine.stop();
+      }
+      if (upgradeLoop != null) {
+        upgradeLoop.stop();
+      }
+      staticFileServer.close();
+      if (accessLog != null) {
+        accessLog.close();
+      }
+      if (debugLog != null) {
+        debugLog.close();
+      }
+      // idle keep-alive connections would otherwise hold workers until their timeout
+      for (Socket client : openConnections) {
+        closeQuietly(client);
+      }
       threadPool.shutdown();
       if (!threadPool.awaitTermination(5, TimeUnit.SECONDS)) {
         threadPool.shutdownNow();
@@ -110,7 +268,81 @@ public class HttpServer extends Router {
 
   public void staticFiles(String webPath, String localPath) {
     String formatedPath = webPath.startsWith("/") ? webPath : "/" + webPath;
-    staticRoutes.put(formatedPath, localPath);
+    staticFileServer.add(formatedPath, localPath);
+  }
+
+  // gzip / deflate negotiation for dynamic and static responses (null disables it)
+  public void setCompression(Compression compression) {
+    this.compression = compression;
+    staticFileServer.setCompression(compression);
+  }
+
+  public Compression getCompression() {
+    return compression;
+  }
+
+  // Request counters and latency histograms (null disables them); serve them with metrics.handler()
+  public void setMetrics(Metrics metrics) {
+    if (metrics != null) {
+      metrics.bind(this);
+    }
+    this.metrics = metrics;
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  // One line per answered request, written in the background (null disables it)
+  public void setAccessLog(AccessLog accessLog) {
+    AccessLog previous = this.accessLog;
+    if (accessLog != null) {
+      accessLog.start();
+    }
+    this.accessLog = accessLog;
+    if (previous != null && previous != accessLog) {
+      previous.close();
+    }
+  }
+
+  public AccessLog getAccessLog() {
+    return accessLog;
+  }
+
+  // Serializer behind res.json(...), req.bodyAs(...) and JsonParser (shared by all requests)
+  public void setJsonCodec(JsonCodec jsonCodec) {
+    if (jsonCodec == null) {
+      throw new IllegalArgumentException("jsonCodec must not be null");
+    }
+    this.jsonCodec = jsonCodec;
+  }
+
+  public JsonCodec getJsonCodec() {
+    return jsonCodec;
+  }
+
+  // Memory (bytes) used to keep small static files with their ETag / Last-Modified
+  public void setStaticCacheSize(long bytes) {
+    staticFileServer.setCapacity(bytes);
+  }
+
+  public long getStaticCacheHits() {
+    return staticFileServer.getHits();
+  }
+
+  public long getStaticCacheMisses() {
+    return staticFileServer.getMisses();
+  }
+
+  // Requests answered with 304 Not Modified
+  public long getStaticNotModified() {
+    return staticFileServer.getNotModified();
+  }
+
+  public double getStaticCacheHitRatio() {
+    long hits = staticFileServer.getHits();
+    long total = hits + staticFileServer.getMisses();
+    return total == 0 ? 0 : (double) hits / total;
   }
 
   public void printRouteTree() {
@@ -149,45 +381,130 @@ public class HttpServer extends Router {
   // -------------------------------------------------------
   // Private methods
 
+  // Debug output is built on the worker but printed by debugLog's thread: workers never wait for stdout
   private void logRequest(HttpRequest req) {
-    if (!debug)
+    AccessLog log = debugLog;
+    if (!debug || log == null)
       return;
-    System.out.println("\n[DEBUG] Incoming Request");
-    System.out.println(req.serialize());
+    log.print("[THREAD] Cerere procesata de: " + Thread.currentThread().getName()
+        + "\n\n[DEBUG] Incoming Request\n" + req.serialize());
   }
 
-  private void logResponse(HttpRequest req, HttpResponse res, long durationMs) {
-    if (!debug)
+  private void logResponse(HttpRequest req, HttpResponse res, long durationNanos) {
+    AccessLog log = debugLog;
+    if (!debug || log == null)
       return;
-    System.out.println("\n[DEBUG] Response");
-    System.out.println(req.getMethod() + " " + req.getPath() + " -> " + res.getStatusCode()
-        + " (" + durationMs + "ms)");
-    System.out.println(res.serialize());
+    log.print("\n[DEBUG] Response\n" + req.getMethod() + " " + req.getPath() + " -> " + res.getStatusCode()
+        + String.format(" (%.3fms)", durationNanos / 1e6) + "\n" + res.serialize());
   }
 
   private Route findRoute(HttpRequest req) {
-    List<Route> methodRoutes = this.routes.get(req.getMethod());
-    if (methodRoutes == null)
-      return null;
-
-    for (Route route : methodRoutes) {
-      // matchPathWithParams este tot din clasa părinte Router
-      Map<String, String> params = matchPathWithParams(route.path, req.getCleanPath());
-      if (params != null) {
-        req.setPathParams(params);
-        return route;
+    RouteTree tree = routeTree;
+    if (tree == null) {
+      tree = compileRoutes();
+    }
+    return tree.find(req);
+  }
+
+  private synchronized RouteTree compileRoutes() {
+    if (routeTree == null) {
+      routes.values().forEach(routeList -> {
+        for (Route route : routeList) {
+          List<Middleware> resolved = resolveMiddlewares(route);
+          route.chain = MiddlewareExecutor.compile(resolved, route.handler);
+          route.maxBodySize = -1;
+          for (Middleware middleware : resolved) {
+            if (middleware instanceof BodyLimit) {
+              route.maxBodySize = ((BodyLimit) middleware).getMaxBytes();
+            }
+          }
+        }
+      });
+      routeTree = RouteTree.compile(routes);
+    }
+    return routeTree;
+  }
+
+  // Global middlewares that apply to a route + its own middlewares.
+  // Prefixes are decided from the route's static part; only a prefix reaching
+  // into a :param/* segment still needs a check per request.
+  private List<Middleware> resolveMiddlewares(Route route) {
+    String path = route.path.startsWith("/") ? route.path : "/" + route.path;
+    int dynamic = path.length();
+    int colon = path.indexOf("/:");
+    int star = path.indexOf("/*");
+    if (colon != -1) {
+      dynamic = colon;
+    }
+    if (star != -1 && star < dynamic) {
+      dynamic = star;
+    }
+    String staticPrefix = path.substring(0, Math.max(1, dynamic));
+    boolean fullyStatic = dynamic == path.length();
+    while (fullyStatic && staticPrefix.length() > 1 && staticPrefix.endsWith("/")) {
+      staticPrefix = staticPrefix.substring(0, staticPrefix.length() - 1);
+    }
+
+    List<Middleware> resolved = new ArrayList<>();
+    for (GlobalMiddleware gm : this.middlewares) {
+      if (gm.pathPrefix == null || staticPrefix.startsWith(gm.pathPrefix)) {
+        resolved.add(gm.handler);
+      } else if (gm.pathPrefix.startsWith(staticPrefix)) {
+        resolved.add(prefixed(gm.pathPrefix, gm.handler));
       }
+      // otherwise no request matching this route can start with the prefix
     }
-    return null;
+    resolved.addAll(route.middlewares);
+    return resolved;
+  }
+
+  private static Middleware prefixed(String prefix, Middleware handler) {
+    return (req, res, next) -> {
+      if (req.getCleanPath().startsWith(prefix)) {
+        handler.handle(req, res, next);
+      } else {
+        next.next();
+      }
+    };
+  }
+
+  @Override
+  protected synchronized void addRoute(String method, String path, Object... handlers) {
+    super.addRoute(method, path, handlers);
+    routeTree = null;
+  }
+
+  @Override
+  public synchronized void use(Middleware handler) {
+    super.use(handler);
+    routeTree = null;
+  }
+
+  @Override
+  public synchronized void use(String pathPrefix, Middleware handler) {
+    super.use(pathPrefix, handler);
+    routeTree = null;
   }
 
   private void run() {
+    if (engine == Engine.NIO) {
+      runNio();
+      return;
+    }
     try {
-      this.serverSocket = new ServerSocket(port);
+      // channel backed sockets, so upgraded connections can be handed to an event loop
+      ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(port));
+      this.serverSocket = serverChannel.socket();
       while (this.isRunning) {
         try {
           Socket client = serverSocket.accept();
-          threadPool.execute(() -> handleClient(client));
+          try {
+            threadPool.execute(() -> handleClient(client));
+          } catch (RejectedExecutionException e) {
+            sendError(client, 503, "Service Unavailable");
+            closeQuietly(client);
+          }
         } catch (SocketException e) {
           if (!isRunning) {
             System.out.println("🛑 Server socket closed for shutdown.");
@@ -206,80 +523,374 @@ public class HttpServer extends Router {
     }
   }
 
-  private void handleClient(Socket client) {
+  private void runNio() {
     try {
-      long startTime = System.currentTimeMillis();
-
-      HttpRequestParser parser = new HttpRequestParser(client);
-      HttpRequest req = parser.parseRequest();
-      HttpResponse res = new HttpResponse();
-
-      if (debug) {
-        System.out.println("[THREAD] Cerere procesata de: " + Thread.currentThread().getName());
+      this.nioEngine = new NioEngine(this, threadPool, eventLoops);
+      nioEngine.run(port);
+      if (!isRunning) {
+        System.out.println("🛑 Server socket closed for shutdown.");
       }
-      logRequest(req);
+    } catch (IOException e) {
+      if (isRunning) {
+        System.err.println("❌ Server error: " + e.getMessage());
+      }
+    } finally {
+      this.stop();
+    }
+  }
 
-      // Static Files
-      String path = req.getPath();
-      boolean fileFound = false;
-      for (String prefix : staticRoutes.keySet()) {
-        if (path.startsWith(prefix)) {
-          String folderPath = staticRoutes.get(prefix);
-          String fileName = path.substring(prefix.length());
-          File file = new File(folderPath + fileName);
-
-          if (file.isDirectory()) {
-            file = new File(file, "index.html");
+  private void handleClient(Socket client) {
+    connectionsOpened.incrementAndGet();
+    openConnections.add(client);
+    boolean upgraded = false;
+    try {
+      client.setSoTimeout(keepAliveTimeout);
+      client.setTcpNoDelay(true); // responses are written whole, no need to wait for Nagle
+      HttpRequestParser parser = new HttpRequestParser(client);
+      OutputStream out = client.getOutputStream();
+      BufferedOutputStream buffered = new BufferedOutputStream(out, STREAM_BUFFER_SIZE);
+      Transport transport = Transport.of(buffered);
+      int served = 0;
+      boolean keepAlive = true;
+      HttpRequest next = null; // parsed while collecting a pipelined batch, served on its own
+
+      while (keepAlive && isRunning) {
+        HttpRequest req = next;
+        next = null;
+        if (req == null) {
+          try {
+            req = parser.parseRequest();
+          } catch (SocketTimeoutException e) {
+            break; // idle timeout
           }
-
-          if (file.exists() && !file.isDirectory()) {
-            serveStaticFile(res, client, file);
-            fileFound = true;
+        }
+        if (req == null) {
+          break; // client closed the connection
+        }
+        if (served > 0) {
+          connectionsReused.incrementAndGet();
+        }
+        served++;
+
+        keepAlive = isRunning && served < maxRequestsPerConnection && isKeepAlive(req);
+        if (keepAlive && pipelineConcurrency > 1 && canRunConcurrently(req) && parser.hasBufferedRequest()) {
+          // more requests are already waiting behind this one: run them together, answer in order
+          List<HttpRequest> batch = new ArrayList<>();
+          List<Boolean> batchKeepAlive = new ArrayList<>();
+          batch.add(req);
+          batchKeepAlive.add(true);
+          IllegalArgumentException malformed = null;
+          while (keepAlive && batch.size() < pipelineConcurrency && parser.hasBufferedRequest()) {
+            HttpRequest more;
+            try {
+              more = parser.parseRequest();
+            } catch (IllegalArgumentException e) {
+              malformed = e; // answered after the requests before it
+              break;
+            }
+            if (!canRunConcurrently(more)) {
+              next = more;
+              break;
+            }
+            connectionsReused.incrementAndGet();
+            served++;
+            keepAlive = isRunning && served < maxRequestsPerConnection && isKeepAlive(more);
+            batch.add(more);
+            batchKeepAlive.add(keepAlive);
+          }
+          keepAlive = writeInOrder(handleConcurrently(batch, batchKeepAlive), buffered) && keepAlive;
+          buffered.flush();
+          if (malformed != null && keepAlive) {
+            sendError(client, malformed);
             break;
           }
+          continue;
+        }
+
+        HttpResponse res = handle(req, keepAlive, transport);
+        if (res.getUpgrade() != null) {
+          // SSE / WebSocket: the socket moves to an event loop, this worker is free again
+          upgradeLoop().adopt(client.getChannel(), parser.takeBuffered(), res.upgradeHead(), res.getUpgrade());
+          upgraded = true;
+          return;
+        }
+        if (keepAlive && !finishBody(req, res)) {
+          keepAlive = false;
+        }
+        if (res.isCommitted()) {
+          // streamed by the handler, only the end of the body is left
+          keepAlive = res.finishStream() && keepAlive;
+          continue;
+        }
+        res.writeTo(out);
+        if (res.getFileBody() != null) {
+          transferFile(res.getFileBody(), res.getFileLength(), out);
+        }
+        out.flush();
+      }
+    } catch (IllegalArgumentException e) {
+      sendError(client, e);
+    } catch (Exception e) {
+      sendError(client, 500, "Internal Server Error");
+    } finally {
+      openConnections.remove(client);
+      if (!upgraded) {
+        closeQuietly(client);
+      }
+    }
+  }
+
+  // Runs pipelined requests side by side on the worker pool. The calling thread takes over any
+  // task the pool has not started yet, so a busy pool cannot leave the connection waiting.
+  private HttpResponse[] handleConcurrently(List<HttpRequest> batch, List<Boolean> keepAlive) {
+    List<FutureTask<HttpResponse>> tasks = new ArrayList<>();
+    for (int i = 0; i < batch.size(); i++) {
+      HttpRequest req = batch.get(i);
+      boolean reuse = keepAlive.get(i);
+      FutureTask<HttpResponse> task = new FutureTask<>(() -> handleBuffered(req, reuse));
+      tasks.add(task);
+      if (i > 0) {
+        try {
+          threadPool.execute(task);
+        } catch (RejectedExecutionException e) {
+          // runs below on this thread
         }
       }
+    }
+    HttpResponse[] responses = new HttpResponse[tasks.size()];
+    for (int i = 0; i < tasks.size(); i++) {
+      FutureTask<HttpResponse> task = tasks.get(i);
+      task.run(); // no-op when a worker already ran it
+      try {
+        responses[i] = task.get();
+      } catch (ExecutionException e) {
+        boolean badRequest = e.getCause() instanceof IllegalArgumentException;
+        responses[i] = badRequest ? errorResponse(400, "Bad Request") : errorResponse(500, "Internal Server Error");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        responses[i] = errorResponse(503, "Service Unavailable");
+      }
+    }
+    return responses;
+  }
+
+  // Pipelined request run out of turn: the response is buffered whole until the earlier ones are sent
+  HttpResponse handleBuffered(HttpRequest req, boolean keepAlive) {
+    HttpResponse res = handle(req, keepAlive, null);
+    if (res.getUpgrade() != null) {
+      throw new IllegalStateException("A pipelined request cannot switch protocols");
+    }
+    return res;
+  }
+
+  // Returns false when a response closes the connection; the ones after it are dropped
+  private boolean writeInOrder(HttpResponse[] responses, OutputStream out) throws IOException {
+    for (HttpResponse res : responses) {
+      res.writeTo(out);
+      if (res.getFileBody() != null) {
+        transferFile(res.getFileBody(), res.getFileLength(), out);
+      }
+      if ("close".equals(res.getHeaders().get("Connection"))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private synchronized NioEngine upgradeLoop() throws IOException {
+    if (upgradeLoop == null) {
+      upgradeLoop = new NioEngine(this, threadPool, eventLoops);
+      upgradeLoop.startDetached();
+    }
+    return upgradeLoop;
+  }
+
+  // Runs static files / routes / middlewares for one request, independent of the connection engine.
+  // The transport lets handlers stream the body (res.write / flush) while they run.
+  HttpResponse handle(HttpRequest req, boolean keepAlive, Transport transport) {
+    if ("PRI".equals(req.getMethod())) {
+      // HTTP/2 connection preface: the rest of the connection is HTTP/2 frames
+      return http2 ? Http2Connection.accept(this, req) : errorResponse(505, "HTTP Version Not Supported");
+    }
+    if (http2 && transport != null && Http2Connection.isUpgrade(req)) {
+      HttpResponse res = Http2Connection.accept(this, req);
+      if (res != null) {
+        return res;
+      }
+      // unusable HTTP2-Settings: answered over HTTP/1.1 (RFC 7540 3.2)
+    }
+    long startTime = System.nanoTime();
+    Metrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.started();
+    }
+    HttpResponse res = new HttpResponse();
+    res.bind(transport, !"HTTP/1.0".equals(req.getVersion()));
+    req.setJsonCodec(jsonCodec);
+    res.setJsonCodec(jsonCodec);
+    if (compression != null) {
+      res.compressWith(compression, req.getHeader("Accept-Encoding"));
+    }
+    res.addHeader("Connection", keepAlive ? "keep-alive" : "close");
+    if (keepAlive) {
+      // seconds, rounded up: a 500 ms timeout must not be advertised as 0
+      res.addHeader("Keep-Alive", "timeout=" + ((keepAliveTimeout + 999) / 1000) + ", max=" + maxRequestsPerConnection);
+    }
+
+    logRequest(req);
+
+    boolean fileFound = false;
+    Route matchedRoute = null;
+    int failedStatus = 0; // set when an exception leaves here, the engine answers it
+    try {
+      // Static Files
+      if (!staticFileServer.isEmpty()) {
+        fileFound = staticFileServer.serve(req, res);
+      }
 
       // Dinamyc route
       if (!fileFound) {
-        Route matchedRoute = findRoute(req);
+        matchedRoute = findRoute(req);
         if (matchedRoute != null) {
-          List<Middleware> effectiveMiddlewares = new ArrayList<>();
-          for (GlobalMiddleware gm : this.middlewares) {
-            if (gm.pathPrefix == null || req.getCleanPath().startsWith(gm.pathPrefix)) {
-              effectiveMiddlewares.add(gm.handler);
+          req.setMaxBodySize(matchedRoute.maxBodySize >= 0 ? matchedRoute.maxBodySize : maxBodySize);
+          try {
+            matchedRoute.chain.execute(req, res);
+            res.completeStream();
+          } catch (RuntimeException e) {
+            if (res.isCommitted()) {
+              res.abort(); // part of the body is out, the connection is closed instead of answering
+            } else if (e instanceof PayloadTooLargeException) {
+              res.status(413).json(Map.of("message", "Payload Too Large"));
+            } else {
+              throw e;
             }
           }
-          effectiveMiddlewares.addAll(matchedRoute.middlewares);
-
-          MiddlewareExecutor.execute(effectiveMiddlewares, matchedRoute.handler, req, res);
 
         } else {
           res.status(404).json(Map.of("message", "Route not found"));
         }
-
-        PrintWriter out = new PrintWriter(client.getOutputStream());
-        out.write(res.serialize());
-        out.flush();
+        if (compression != null) {
+          compression.apply(req, res);
+        }
       }
-      long duration = System.currentTimeMillis() - startTime;
-      logResponse(req, res, duration);
-    } catch (Exception e) {
-      sendError(client, 500, "Internal Server Error");
+    } catch (RuntimeException e) {
+      failedStatus = e instanceof IllegalArgumentException ? 400 : 500;
+      throw e;
     } finally {
-      try {
-        client.close();
-      } catch (IOException ignored) {
+      long duration = System.nanoTime() - startTime;
+      AccessLog accessLog = this.accessLog;
+      if (metrics != null || accessLog != null) {
+        int status = failedStatus != 0 ? failedStatus : res.getStatusCode();
+        long bodyBytes = failedStatus != 0 ? 0 : res.bodyLength();
+        if (metrics != null) {
+          metrics.finished(req, matchedRoute, fileFound, status, bodyBytes, duration);
+        }
+        if (accessLog != null) {
+          accessLog.log(req, status, bodyBytes, duration);
+        }
+      }
+      if (failedStatus == 0) {
+        logResponse(req, res, duration);
+      }
+    }
+    return res;
+  }
+
+  // Copies the file through a fixed-size transfer buffer, heap use does not grow with the file
+  private void transferFile(File file, long length, OutputStream out) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = 0;
+      while (position < length) {
+        long sent = channel.transferTo(position, length - position, target);
+        if (sent <= 0) {
+          throw new IOException("File shrank while being sent: " + file);
+        }
+        position += sent;
+      }
+    }
+  }
+
+  // Skips a small unread request body so the connection can serve the next request;
+  // a large one is abandoned and the connection marked for closing instead
+  boolean finishBody(HttpRequest req, HttpResponse res) {
+    RequestBody body = req.getRequestBody();
+    if (body == null || body.discard(DRAIN_LIMIT)) {
+      return true;
+    }
+    res.addHeader("Connection", "close");
+    res.removeHeader("Keep-Alive");
+    return false;
+  }
+
+  boolean isRunning() {
+    return isRunning;
+  }
+
+  // HTTP/1.1 connections are persistent unless "Connection: close"; HTTP/1.0 ones only with "keep-alive"
+  boolean isKeepAlive(HttpRequest req) {
+    String connection = req.getHeader("Connection");
+    if ("HTTP/1.0".equals(req.getVersion())) {
+      return hasToken(connection, "keep-alive");
+    }
+    return !hasToken(connection, "close");
+  }
+
+  // Pipelined requests that may run out of turn: safe methods, no body, no protocol switch
+  static boolean canRunConcurrently(HttpRequest req) {
+    String method = req.getMethod();
+    return ("GET".equals(method) || "OPTIONS".equals(method))
+        && req.getRequestBody() == null
+        && req.getHeader("Upgrade") == null
+        && !hasToken(req.getHeader("Accept"), "text/event-stream");
+  }
+
+  static boolean hasToken(String headerValue, String token) {
+    if (headerValue == null) {
+      return false;
+    }
+    for (String part : headerValue.split(",")) {
+      if (part.trim().equalsIgnoreCase(token)) {
+        return true;
       }
     }
+    return false;
+  }
+
+  private void closeQuietly(Socket client) {
+    try {
+      client.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  HttpResponse errorResponse(int status, String message) {
+    HttpResponse res = new HttpResponse();
+    res.status(status).json(Map.of("message", message));
+    res.addHeader("Connection", "close");
+    return res;
+  }
+
+  // Answer to a request that could not be read
+  HttpResponse malformedResponse(IllegalArgumentException e) {
+    if (e instanceof UnsupportedTransferEncodingException) {
+      return errorResponse(501, "Not Implemented");
+    }
+    return errorResponse(400, "Bad Request");
   }
 
   private void sendError(Socket client, int status, String message) {
+    sendError(client, errorResponse(status, message));
+  }
+
+  private void sendError(Socket client, IllegalArgumentException e) {
+    sendError(client, malformedResponse(e));
+  }
+
+  private void sendError(Socket client, HttpResponse res) {
     try {
-      HttpResponse res = new HttpResponse();
-      res.status(status).json(Map.of("message", message));
-      PrintWriter out = new PrintWriter(client.getOutputStream());
-      out.write(res.serialize());
+      OutputStream out = client.getOutputStream();
+      res.writeTo(out);
       out.flush();
     } catch (IOException ignored) {
     }
@@ -296,29 +907,4 @@ public class HttpServer extends Router {
     return found;
   }
 
-  private void serveStaticFile(HttpResponse res, Socket client, File file) {
-    try {
-      OutputStream out = client.getOutputStream();
-      PrintWriter writer = new PrintWriter(out, false);
-
-      byte[] bodyBytes = Files.readAllBytes(file.toPath());
-      String contentType = Files.probeContentType(file.toPath());
-      if (contentType == null) {
-        contentType = "application/octet-stream";
-      }
-      writer.println("HTTP/1.1 200 OK");
-      writer.println("Content-Type: " + contentType);
-      writer.println("Content-Length: " + bodyBytes.length);
-      writer.println();
-      writer.flush();
-      out.write(bodyBytes);
-      out.flush();
-
-      res.status(200).setBody("[Static File: " + file.getName() + "]");
-
-    } catch (IOException e) {
-      // TODO Handle serverStaticFile IOException
-    }
-  }
-
-}
\ No newline at end of file
+}
@@ -1,17 +1,35 @@
 package server;
+import static java.util.Map.entry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
 
 public class HttpStatus {
-  public static final Map<Integer, String> STATUS_MESSAGES = Map.of(
-    200, "OK",
-    201, "Created",
-    304, "Not Modified",
-    400, "Bad Request",
-    401, "Unauthorized",
-    403, "Forbidden",
-    500, "Internal Server Error"
+  public static final Map<Integer, String> STATUS_MESSAGES = Map.ofEntries(
+    entry(101, "Switching Protocols"),
+    entry(200, "OK"),
+    entry(201, "Created"),
+    entry(204, "No Content"),
+    entry(304, "Not Modified"),
+    entry(400, "Bad Request"),
+    entry(401, "Unauthorized"),
+    entry(403, "Forbidden"),
+    entry(404, "Not Found"),
+    entry(413, "Payload Too Large"),
+    entry(426, "Upgrade Required"),
+    entry(500, "Internal Server Error"),
+    entry(501, "Not Implemented"),
+    entry(503, "Service Unavailable"),
+    entry(505, "HTTP Version Not Supported")
   );
 
+  // "HTTP/1.1 <code> <message>\r\n" encoded once per known status
+  private static final Map<Integer, byte[]> STATUS_LINES = new HashMap<>();
+  static {
+    STATUS_MESSAGES.forEach((code, message) -> STATUS_LINES.put(code, encodeStatusLine(code, message)));
+  }
+
   public static String getMessage(int code) {
     return STATUS_MESSAGES.getOrDefault(code, "Unknown Status");
   }
@@ -20,4 +38,17 @@ public class HttpStatus {
     return STATUS_MESSAGES.containsKey(code);
   }
 
-}
\ No newline at end of file
+  // Pre-encoded status line, built on the fly only for custom messages / unknown codes
+  static byte[] statusLine(int code, String message) {
+    byte[] line = STATUS_LINES.get(code);
+    if (line != null && STATUS_MESSAGES.get(code).equals(message)) {
+      return line;
+    }
+    return encodeStatusLine(code, message);
+  }
+
+  private static byte[] encodeStatusLine(int code, String message) {
+    return ("HTTP/1.1 " + code + " " + message + "\r\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+}
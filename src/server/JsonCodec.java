@@ -0,0 +1,18 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+
+// JSON serialization used by res.json(...), req.bodyAs(...) and JsonParser.
+// One instance serves every request, so implementations must be thread-safe.
+// The default is GsonCodec.shared(); another library plugs in with HttpServer.setJsonCodec(...).
+public interface JsonCodec {
+
+  // Writes value as UTF-8 JSON
+  void write(Object value, OutputStream out) throws IOException;
+
+  // Throws IllegalArgumentException when json is not valid for the type (answered with 400)
+  <T> T read(String json, Type type) throws IllegalArgumentException;
+
+}
@@ -0,0 +1,113 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of durations in nanoseconds (HdrHistogram layout).
+// Every power of two is split into 32 buckets, so a recorded value is known within 3%
+// from 1 ns up to about an hour. Recording is lock-free and allocation-free; reads are
+// consistent enough for monitoring, not a snapshot.
+public class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // values below this are exact
+  private static final int HALF = SUB_BUCKETS / 2; // buckets per power of two above that
+  private static final int MAX_MAGNITUDE = 42; // 2^42 ns, about 73 minutes; longer values are clamped
+  private static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * HALF;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts.incrementAndGet(indexOf(nanos));
+    count.increment();
+    sum.add(nanos);
+    max.accumulate(nanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSumNanos() {
+    return sum.sum();
+  }
+
+  public long getMaxNanos() {
+    return max.get();
+  }
+
+  // Value below which the given fraction of recordings fall (0.5 = median, 0.99 = p99), in nanoseconds
+  public long getPercentile(double fraction) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  // Cumulative counts at each bound (nanoseconds, ascending): recordings whose bucket starts at or below it
+  long[] countsAtOrBelow(long[] bounds) {
+    long[] result = new long[bounds.length];
+    long seen = 0;
+    int b = 0;
+    for (int i = 0; i < BUCKETS && b < bounds.length; i++) {
+      while (b < bounds.length && lowestValue(i) > bounds[b]) {
+        result[b++] = seen;
+      }
+      seen += counts.get(i);
+    }
+    while (b < bounds.length) {
+      result[b++] = seen;
+    }
+    return result;
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    if (magnitude > MAX_MAGNITUDE) {
+      return BUCKETS - 1;
+    }
+    int shift = magnitude - SUB_BUCKET_BITS + 1;
+    int sub = (int) (value >>> shift); // HALF .. SUB_BUCKETS - 1
+    return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * HALF + (sub - HALF);
+  }
+
+  static long lowestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int magnitude = SUB_BUCKET_BITS + (index - SUB_BUCKETS) / HALF;
+    int sub = HALF + (index - SUB_BUCKETS) % HALF;
+    return (long) sub << (magnitude - SUB_BUCKET_BITS + 1);
+  }
+
+  static long highestValue(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int magnitude = SUB_BUCKET_BITS + (index - SUB_BUCKETS) / HALF;
+    return lowestValue(index) + (1L << (magnitude - SUB_BUCKET_BITS + 1)) - 1;
+  }
+
+}
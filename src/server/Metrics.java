@@ -0,0 +1,225 @@
+package server;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Request metrics for HttpServer.setMetrics(...): counters per route and status, latency
+// histograms per route, requests in flight, body bytes and worker pool usage.
+// handler() serves them in the Prometheus text format:
+//
+//   server.get("/metrics", metrics.handler());
+public class Metrics {
+
+  static final String STATIC_ROUTE = "static";
+  static final String UNMATCHED_ROUTE = "unmatched";
+
+  // Prometheus "le" bounds of the duration histogram, in seconds
+  private static final double[] BUCKETS = {
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+  private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+  private static final String[] BUCKET_LABELS = new String[BUCKETS.length]; // "0.0005", not "5.0E-4"
+  static {
+    for (int i = 0; i < BUCKETS.length; i++) {
+      BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1_000_000_000L);
+      BUCKET_LABELS[i] = BigDecimal.valueOf(BUCKETS[i]).toPlainString();
+    }
+  }
+
+  private final Map<Route, RouteStats> byRoute = new ConcurrentHashMap<>(); // fast path, one lookup per request
+  private final Map<String, RouteStats> byLabel = new ConcurrentHashMap<>();
+  private final LongAdder inFlight = new LongAdder();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private volatile HttpServer server; // for the worker pool and connection gauges
+
+  void bind(HttpServer server) {
+    this.server = server;
+  }
+
+  void started() {
+    inFlight.increment();
+  }
+
+  // route is null for static files and unmatched requests; status is what the client gets
+  void finished(HttpRequest req, Route route, boolean staticFile, int status, long bodyBytesOut, long nanos) {
+    inFlight.decrement();
+    requests.increment();
+    RouteStats stats = route != null ? byRoute.get(route) : null;
+    if (stats == null) {
+      stats = statsFor(req, route, staticFile);
+    }
+    stats.record(status, nanos);
+    RequestBody body = req.getRequestBody();
+    if (body != null) {
+      bytesIn.add(body.getReceived());
+    }
+    bytesOut.add(bodyBytesOut);
+  }
+
+  private RouteStats statsFor(HttpRequest req, Route route, boolean staticFile) {
+    if (route == null) {
+      String method = req.getMethod(); // one of HttpRequestParser.VALID_METHODS, so the label set stays small
+      String path = staticFile ? STATIC_ROUTE : UNMATCHED_ROUTE;
+      return byLabel.computeIfAbsent(method + " " + path, key -> new RouteStats(method, path));
+    }
+    return byRoute.computeIfAbsent(route, r -> byLabel.computeIfAbsent(r.method + " " + r.path,
+        key -> new RouteStats(r.method, r.path)));
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getInFlight() {
+    return inFlight.sum();
+  }
+
+  // Request body bytes read by handlers
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  // Response body bytes, before transfer encoding
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  // Latency of one route ("GET", "/cats/:id"), null when it has not been called yet
+  public LatencyHistogram getLatency(String method, String route) {
+    RouteStats stats = byLabel.get(method + " " + route);
+    return stats != null ? stats.latency : null;
+  }
+
+  // Route answering "GET /metrics" (or any path) with the Prometheus text exposition format
+  public HttpHandler handler() {
+    return (req, res) -> res.send(scrape().getBytes(StandardCharsets.UTF_8),
+        "text/plain; version=0.0.4; charset=utf-8");
+  }
+
+  public String scrape() {
+    StringBuilder out = new StringBuilder(4096);
+    List<RouteStats> routes = new ArrayList<>(byLabel.values());
+    routes.sort((a, b) -> a.label.compareTo(b.label));
+
+    header(out, "http_requests_total", "counter", "Requests answered, by route and status.");
+    for (RouteStats stats : routes) {
+      for (int status = 0; status < stats.statuses.length(); status++) {
+        LongAdder counter = stats.statuses.get(status);
+        if (counter != null) {
+          out.append("http_requests_total{");
+          stats.labels(out);
+          out.append(",status=\"").append(status).append("\"} ").append(counter.sum()).append('\n');
+        }
+      }
+    }
+
+    header(out, "http_request_duration_seconds", "histogram",
+        "Time spent in static files, routes and middlewares.");
+    for (RouteStats stats : routes) {
+      long count = stats.latency.getCount();
+      long[] cumulative = stats.latency.countsAtOrBelow(BUCKET_NANOS);
+      for (int i = 0; i < BUCKETS.length; i++) {
+        out.append("http_request_duration_seconds_bucket{");
+        stats.labels(out);
+        out.append(",le=\"").append(BUCKET_LABELS[i]).append("\"} ").append(Math.min(cumulative[i], count)).append('\n');
+      }
+      out.append("http_request_duration_seconds_bucket{");
+      stats.labels(out);
+      out.append(",le=\"+Inf\"} ").append(count).append('\n');
+      out.append("http_request_duration_seconds_sum{");
+      stats.labels(out);
+      out.append("} ").append(stats.latency.getSumNanos() / 1e9).append('\n');
+      out.append("http_request_duration_seconds_count{");
+      stats.labels(out);
+      out.append("} ").append(count).append('\n');
+    }
+
+    sample(out, "http_requests_in_flight", "gauge", "Requests being handled right now.", inFlight.sum());
+    sample(out, "http_request_body_bytes_total", "counter", "Request body bytes read by handlers.", bytesIn.sum());
+    sample(out, "http_response_body_bytes_total", "counter", "Response body bytes produced.", bytesOut.sum());
+
+    HttpServer server = this.server;
+    if (server != null) {
+      sample(out, "http_connections_opened_total", "counter", "TCP connections accepted.",
+          server.getConnectionsOpened());
+      sample(out, "http_connections_reused_total", "counter", "Requests served on an already open connection.",
+          server.getConnectionsReused());
+      ExecutorService executor = server.getExecutor();
+      if (executor instanceof ThreadPoolExecutor) {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        sample(out, "http_worker_queue_depth", "gauge", "Tasks waiting for a worker thread.", pool.getQueue().size());
+        sample(out, "http_worker_threads_active", "gauge", "Worker threads running a task.", pool.getActiveCount());
+        sample(out, "http_worker_threads", "gauge", "Worker threads in the pool.", pool.getPoolSize());
+      }
+    }
+    return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  // A metric with a single, unlabeled value
+  private static void sample(StringBuilder out, String name, String type, String help, long value) {
+    header(out, name, type, help);
+    out.append(name).append(' ').append(value).append('\n');
+  }
+
+  // Label values escape backslash, quote and newline (Prometheus text format)
+  private static void escaped(StringBuilder out, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        out.append('\\').append(c);
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+  }
+
+  private static final class RouteStats {
+    final String method;
+    final String route;
+    final String label;
+    final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(600); // indexed by status code
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    RouteStats(String method, String route) {
+      this.method = method;
+      this.route = route;
+      this.label = route + " " + method;
+    }
+
+    void record(int status, long nanos) {
+      int index = status >= 0 && status < statuses.length() ? status : 0;
+      LongAdder counter = statuses.get(index);
+      if (counter == null) {
+        statuses.compareAndSet(index, null, new LongAdder());
+        counter = statuses.get(index);
+      }
+      counter.increment();
+      latency.record(nanos);
+    }
+
+    void labels(StringBuilder out) {
+      out.append("method=\"");
+      escaped(out, method);
+      out.append("\",route=\"");
+      escaped(out, route);
+      out.append('"');
+    }
+  }
+
+}
@@ -10,26 +10,11 @@ public class MiddlewareExecutor {
       HttpRequest req,
       HttpResponse res
   ) {
-    executeAtIndex(0, middlewares, finalHandler, req, res);
+    compile(middlewares, finalHandler).execute(req, res);
   }
 
-  private static void executeAtIndex(
-      int index,
-      List<Middleware> middlewares,
-      HttpHandler finalHandler,
-      HttpRequest req,
-      HttpResponse res
-  ) {
-    // dacă am terminat middleware-urile → handlerul final
-    if (index >= middlewares.size()) {
-      finalHandler.handle(req, res);
-      return;
-    }
-
-    Middleware current = middlewares.get(index);
-
-    current.handle(req, res, () -> {
-      executeAtIndex(index + 1, middlewares, finalHandler, req, res);
-    });
+  // Resolve the chain once and reuse it for every request
+  public static MiddlewareChain compile(List<Middleware> middlewares, HttpHandler finalHandler) {
+    return new MiddlewareChain(middlewares, finalHandler);
   }
 }
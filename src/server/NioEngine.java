@@ -0,0 +1,917 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+// Non-blocking connection engine: event loops accept, read and write,
+// handlers and middlewares run on the server's worker pool.
+class NioEngine {
+
+  static final int READ_BUFFER_SIZE = 16 * 1024;
+  static final int UPGRADED_READ_BUFFER_SIZE = 2 * 1024; // idle SSE / WebSocket clients keep only this much
+  static final int MAX_QUEUED = 256 * 1024; // per connection, before a streaming handler has to wait
+
+  private final HttpServer server;
+  private final ExecutorService workers;
+  private final EventLoop[] loops;
+  private ServerSocketChannel serverChannel;
+  private volatile boolean running = true;
+  private int nextLoop = 0;
+
+  NioEngine(HttpServer server, ExecutorService workers, int eventLoops) throws IOException {
+    this.server = server;
+    this.workers = workers;
+    this.loops = new EventLoop[Math.max(1, eventLoops)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+    }
+  }
+
+  // Runs the first event loop (which also accepts) on the calling thread
+  void run(int port) throws IOException {
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+    for (int i = 1; i < loops.length; i++) {
+      Thread thread = new Thread(loops[i], "nio-loop-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    loops[0].run();
+  }
+
+  // Event loops without an accepting socket: the blocking engine hands upgraded
+  // connections (SSE, WebSocket) over to them instead of keeping a worker per socket
+  void startDetached() {
+    for (int i = 0; i < loops.length; i++) {
+      Thread thread = new Thread(loops[i], "upgrade-loop-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  // Takes over a connection accepted by the blocking engine; buffered holds bytes already read from it
+  synchronized void adopt(SocketChannel channel, ByteBuffer buffered, ByteBuffer[] head, UpgradeHandler handler) {
+    EventLoop target = loops[nextLoop++ % loops.length];
+    target.execute(() -> target.adopt(channel, buffered, head, handler));
+  }
+
+  void stop() {
+    running = false;
+    try {
+      if (serverChannel != null) {
+        serverChannel.close();
+      }
+    } catch (IOException ignored) {
+    }
+    for (EventLoop loop : loops) {
+      loop.selector.wakeup();
+    }
+  }
+
+  // -------------------------------------------------------
+  // Event loop
+
+  private final class EventLoop implements Runnable {
+
+    final Selector selector;
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    final Set<Connection> connections = new HashSet<>(); // touched only by the loop thread
+
+    EventLoop() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    // Runs a task on the loop thread (used by workers to hand back responses)
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          selector.select(1000);
+          runTasks();
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            handleKey(key);
+          }
+          closeIdleConnections();
+        }
+      } catch (IOException | ClosedSelectorException e) {
+        if (running) {
+          System.err.println("❌ Event loop error: " + e.getMessage());
+        }
+      } finally {
+        for (Connection conn : new ArrayList<>(connections)) {
+          conn.close();
+        }
+        try {
+          selector.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+
+    private void handleKey(SelectionKey key) {
+      if (!key.isValid()) {
+        return;
+      }
+      if (key.isAcceptable()) {
+        accept();
+        return;
+      }
+      Connection conn = (Connection) key.attachment();
+      try {
+        if (key.isReadable()) {
+          conn.onReadable();
+        }
+        if (key.isValid() && key.isWritable()) {
+          conn.flush();
+        }
+      } catch (IOException | CancelledKeyException e) {
+        conn.close();
+      }
+    }
+
+    private void accept() {
+      try {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+          channel.configureBlocking(false);
+          channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+          server.connectionsOpened.incrementAndGet();
+          EventLoop target = loops[nextLoop++ % loops.length];
+          SocketChannel accepted = channel;
+          if (target == this) {
+            register(accepted);
+          } else {
+            target.execute(() -> target.register(accepted));
+          }
+        }
+      } catch (IOException e) {
+        if (running) {
+          System.err.println("❌ Accept error: " + e.getMessage());
+        }
+      }
+    }
+
+    private void register(SocketChannel channel) {
+      try {
+        Connection conn = new Connection(this, channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        connections.add(conn);
+      } catch (IOException e) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+
+    private void adopt(SocketChannel channel, ByteBuffer buffered, ByteBuffer[] head, UpgradeHandler handler) {
+      try {
+        channel.configureBlocking(false);
+        Connection conn = new Connection(this, channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        connections.add(conn);
+        if (buffered.remaining() > conn.readBuffer.remaining()) {
+          conn.readBuffer = ByteBuffer.allocate(buffered.remaining() + READ_BUFFER_SIZE);
+        }
+        conn.readBuffer.put(buffered);
+        conn.processing = true;
+        conn.startUpgrade(head, handler);
+      } catch (IOException e) {
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+
+    private void runTasks() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+
+    private void closeIdleConnections() {
+      long now = System.currentTimeMillis();
+      List<Connection> idle = new ArrayList<>();
+      for (Connection conn : connections) {
+        if (conn.isIdle() && now - conn.lastActivity > server.getKeepAliveTimeout()) {
+          idle.add(conn);
+        }
+      }
+      for (Connection conn : idle) {
+        conn.close();
+      }
+    }
+  }
+
+  // -------------------------------------------------------
+  // Connection state, owned by its event loop thread
+
+  private final class Connection {
+
+    final EventLoop loop;
+    final SocketChannel channel;
+    SelectionKey key;
+    ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    final HttpRequestDecoder decoder = new HttpRequestDecoder();
+    BodyDecoder bodyDecoder; // body of the running request still arriving from the socket
+    BodyPipe bodyPipe;
+    UpgradeHandler upgrade; // set once the connection left HTTP/1.1 (SSE, WebSocket, HTTP/2)
+
+    // bytes waiting in writeQueue (or on their way to it); streaming workers block above MAX_QUEUED
+    private final Object outbound = new Object();
+    private long queuedBytes = 0;
+    private boolean closed = false;
+    final Transport transport = new StreamTransport();
+    final ArrayDeque<Object> writeQueue = new ArrayDeque<>(); // ByteBuffer[] (head + body) or FileRegion
+
+    boolean processing = false; // a request is running on a worker
+    boolean responseQueued = false;
+    boolean keepAlive = true;
+    int served = 0;
+    long lastActivity = System.currentTimeMillis();
+
+    Connection(EventLoop loop, SocketChannel channel) {
+      this.loop = loop;
+      this.channel = channel;
+      Socket socket = channel.socket();
+      if (socket.getInetAddress() != null) {
+        decoder.setRemoteAddress(socket.getInetAddress().getHostAddress());
+      }
+    }
+
+    boolean isIdle() {
+      return !processing && writeQueue.isEmpty();
+    }
+
+    void onReadable() throws IOException {
+      int read = channel.read(readBuffer);
+      if (read == -1) {
+        close();
+        return;
+      }
+      lastActivity = System.currentTimeMillis();
+      if (upgrade != null) {
+        deliverUpgradeData();
+        return;
+      }
+      if (bodyPipe != null) {
+        feedBody();
+        return;
+      }
+      processBuffered();
+    }
+
+    // Decodes the next request from the buffer; pipelined requests wait until the previous response is written
+    void processBuffered() {
+      if (processing || !channel.isOpen()) {
+        return;
+      }
+
+      HttpRequest decoded;
+      IllegalArgumentException malformed = null;
+      readBuffer.flip();
+      try {
+        decoded = decoder.decode(readBuffer);
+      } catch (IllegalArgumentException e) {
+        decoded = null;
+        malformed = e;
+      }
+      readBuffer.compact();
+
+      if (malformed != null) {
+        rejectMalformed(malformed);
+        return;
+      }
+      if (decoded == null) {
+        ensureCapacity();
+        return;
+      }
+      HttpRequest req = decoded;
+
+      processing = true;
+      if (served > 0) {
+        server.connectionsReused.incrementAndGet();
+      }
+      served++;
+      keepAlive = server.isRunning() && served < server.getMaxRequestsPerConnection() && server.isKeepAlive(req);
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+      BodyDecoder pending = decoder.pendingBody();
+      if (pending != null) {
+        // keep reading while the handler consumes the body
+        bodyDecoder = pending;
+        bodyPipe = new BodyPipe(pending.contentLength(), HttpRequestParser.MAX_BODY_SIZE,
+            server.getKeepAliveTimeout(), () -> loop.execute(this::resumeBody),
+            HttpRequestParser.expectsContinue(req) ? () -> loop.execute(this::sendContinue) : null);
+        req.setRequestBody(bodyPipe);
+        feedBody();
+      } else if (keepAlive && server.getPipelineConcurrency() > 1 && HttpServer.canRunConcurrently(req)) {
+        List<HttpRequest> batch = new ArrayList<>();
+        List<Boolean> batchKeepAlive = new ArrayList<>();
+        batch.add(req);
+        batchKeepAlive.add(true);
+        collectPipelined(batch, batchKeepAlive);
+        if (batch.size() > 1) {
+          new Batch(batch, batchKeepAlive).start();
+          return;
+        }
+      }
+
+      boolean requestKeepAlive = keepAlive;
+      try {
+        workers.execute(() -> {
+          ByteBuffer[] buffers;
+          FileRegion file = null;
+          boolean reuse = requestKeepAlive;
+          try {
+            HttpResponse res = server.handle(req, requestKeepAlive, transport);
+            if (reuse && !server.finishBody(req, res)) {
+              reuse = false;
+            }
+            if (res.getUpgrade() != null) {
+              ByteBuffer[] head = res.upgradeHead();
+              UpgradeHandler handler = res.getUpgrade();
+              loop.execute(() -> startUpgrade(head, handler));
+              return;
+            }
+            if (res.isCommitted()) {
+              reuse = res.finishStream() && reuse;
+              buffers = null; // already queued by the transport
+            } else {
+              buffers = res.toBuffers();
+            }
+            if (res.getFileBody() != null) {
+              file = new FileRegion(res.getFileBody(), res.getFileLength());
+            }
+          } catch (IllegalArgumentException e) {
+            buffers = server.errorResponse(400, "Bad Request").toBuffers();
+            reuse = false;
+          } catch (Exception e) {
+            buffers = server.errorResponse(500, "Internal Server Error").toBuffers();
+            reuse = false;
+          }
+          ByteBuffer[] response = buffers;
+          FileRegion responseFile = file;
+          boolean responseKeepAlive = reuse;
+          loop.execute(() -> respond(response, responseFile, responseKeepAlive));
+        });
+      } catch (RejectedExecutionException e) {
+        respond(server.errorResponse(503, "Service Unavailable").toBuffers(), null, false);
+      }
+    }
+
+    // Adds the requests already buffered behind the current one that may run out of turn
+    private void collectPipelined(List<HttpRequest> batch, List<Boolean> batchKeepAlive) {
+      readBuffer.flip();
+      try {
+        while (keepAlive && batch.size() < server.getPipelineConcurrency()) {
+          int position = readBuffer.position();
+          HttpRequest more;
+          try {
+            more = decoder.decode(readBuffer);
+          } catch (IllegalArgumentException e) {
+            decoder.rewind(readBuffer, position); // rejected once the batch is answered
+            break;
+          }
+          if (more == null) {
+            break;
+          }
+          if (decoder.pendingBody() != null || !HttpServer.canRunConcurrently(more)) {
+            decoder.rewind(readBuffer, position); // runs on its own after the batch
+            break;
+          }
+          server.connectionsReused.incrementAndGet();
+          served++;
+          keepAlive = server.isRunning() && served < server.getMaxRequestsPerConnection() && server.isKeepAlive(more);
+          batch.add(more);
+          batchKeepAlive.add(keepAlive);
+        }
+      } finally {
+        readBuffer.compact();
+      }
+    }
+
+    // Pipelined requests running side by side; responses are queued strictly in request order
+    private final class Batch {
+      final List<HttpRequest> requests;
+      final List<Boolean> requestKeepAlive;
+      final ByteBuffer[][] responses;
+      final FileRegion[] files;
+      final boolean[] reuse;
+      final boolean[] done;
+      int next = 0; // first response not queued yet
+      boolean finished = false;
+
+      Batch(List<HttpRequest> requests, List<Boolean> requestKeepAlive) {
+        this.requests = requests;
+        this.requestKeepAlive = requestKeepAlive;
+        this.responses = new ByteBuffer[requests.size()][];
+        this.files = new FileRegion[requests.size()];
+        this.reuse = new boolean[requests.size()];
+        this.done = new boolean[requests.size()];
+      }
+
+      void start() {
+        for (int i = 0; i < requests.size(); i++) {
+          int slot = i;
+          try {
+            workers.execute(() -> run(slot));
+          } catch (RejectedExecutionException e) {
+            complete(slot, server.errorResponse(503, "Service Unavailable").toBuffers(), null, false);
+          }
+        }
+      }
+
+      // Worker side: the whole response is built in memory
+      private void run(int slot) {
+        ByteBuffer[] buffers;
+        FileRegion file = null;
+        boolean keep = requestKeepAlive.get(slot);
+        try {
+          HttpResponse res = server.handleBuffered(requests.get(slot), keep);
+          buffers = res.toBuffers();
+          if (res.getFileBody() != null) {
+            file = new FileRegion(res.getFileBody(), res.getFileLength());
+          }
+        } catch (IllegalArgumentException e) {
+          buffers = server.errorResponse(400, "Bad Request").toBuffers();
+          keep = false;
+        } catch (Exception e) {
+          buffers = server.errorResponse(500, "Internal Server Error").toBuffers();
+          keep = false;
+        }
+        ByteBuffer[] response = buffers;
+        FileRegion responseFile = file;
+        boolean responseKeepAlive = keep;
+        loop.execute(() -> complete(slot, response, responseFile, responseKeepAlive));
+      }
+
+      // Loop side: queues every response whose predecessors are already queued
+      void complete(int slot, ByteBuffer[] response, FileRegion file, boolean keep) {
+        if (finished || !channel.isOpen()) {
+          if (file != null) {
+            file.close();
+          }
+          return;
+        }
+        responses[slot] = response;
+        files[slot] = file;
+        reuse[slot] = keep;
+        done[slot] = true;
+        while (next < responses.length && done[next]) {
+          int i = next++;
+          if (i == responses.length - 1 || !reuse[i]) {
+            // last one (or the connection closes after it): the usual response path takes over
+            finished = true;
+            for (int j = next; j < files.length; j++) {
+              if (files[j] != null) {
+                files[j].close();
+              }
+            }
+            respond(responses[i], files[i], reuse[i]);
+            return;
+          }
+          reserve(responses[i]);
+          writeQueue.add(responses[i]);
+          if (files[i] != null) {
+            writeQueue.add(files[i]);
+          }
+          responses[i] = null;
+          files[i] = null;
+        }
+        try {
+          flush();
+        } catch (IOException | CancelledKeyException e) {
+          close();
+        }
+      }
+    }
+
+    void respond(ByteBuffer[] response, FileRegion file, boolean keepAlive) {
+      if (!channel.isOpen()) {
+        if (file != null) {
+          file.close();
+        }
+        return;
+      }
+      this.keepAlive = keepAlive;
+      this.responseQueued = true;
+      if (response != null) {
+        reserve(response);
+        writeQueue.add(response);
+      }
+      if (file != null) {
+        writeQueue.add(file);
+      }
+      try {
+        flush();
+      } catch (IOException | CancelledKeyException e) {
+        close();
+      }
+    }
+
+    void flush() throws IOException {
+      while (!writeQueue.isEmpty()) {
+        Object head = writeQueue.peek();
+        boolean done;
+        if (head instanceof FileRegion) {
+          done = ((FileRegion) head).transferTo(channel);
+        } else {
+          // gathering write: head and body leave in one syscall without being copied together
+          ByteBuffer[] buffers = (ByteBuffer[]) head;
+          release(channel.write(buffers));
+          done = !buffers[buffers.length - 1].hasRemaining();
+        }
+        if (!done) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+        writeQueue.poll();
+      }
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      if (upgrade != null && !responseQueued) {
+        upgrade.onDrained();
+      }
+
+      if (responseQueued) {
+        responseQueued = false;
+        processing = false;
+        lastActivity = System.currentTimeMillis();
+        if (!keepAlive) {
+          close();
+          return;
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        processBuffered();
+      }
+    }
+
+    // Moves body bytes from the read buffer to the worker, pausing reads while the pipe is full
+    private void feedBody() {
+      BodyPipe pipe = bodyPipe;
+      boolean more = true;
+      readBuffer.flip();
+      try {
+        byte[] array = readBuffer.array();
+        int pos = readBuffer.position();
+        int limit = readBuffer.limit();
+        while (pos < limit && !bodyDecoder.isDone()) {
+          pos = bodyDecoder.skipFraming(array, pos, limit);
+          int count = (int) Math.min(limit - pos, bodyDecoder.remaining());
+          if (count > 0) {
+            more = pipe.offer(array, pos, count);
+            bodyDecoder.consumed(count);
+            pos += count;
+          }
+        }
+        readBuffer.position(pos);
+      } catch (IllegalArgumentException e) {
+        readBuffer.position(readBuffer.limit());
+        pipe.fail(e);
+        bodyDecoder = null;
+        bodyPipe = null;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        return;
+      } finally {
+        readBuffer.compact();
+      }
+
+      if (bodyDecoder.isDone()) {
+        pipe.finish();
+        bodyDecoder = null;
+        bodyPipe = null;
+        // a pipelined request behind the body waits for the response
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      } else if (!more) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      } else {
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      }
+    }
+
+    private void resumeBody() {
+      if (bodyPipe != null && channel.isOpen()) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      }
+    }
+
+    private void sendContinue() {
+      if (!channel.isOpen() || responseQueued) {
+        return;
+      }
+      ByteBuffer[] response = { ByteBuffer.wrap(HttpRequestParser.CONTINUE) };
+      reserve(response);
+      writeQueue.add(response);
+      try {
+        flush();
+      } catch (IOException | CancelledKeyException e) {
+        close();
+      }
+    }
+
+    // Leaves HTTP: the head goes out, then the handler owns the connection's bytes
+    void startUpgrade(ByteBuffer[] head, UpgradeHandler handler) {
+      if (!channel.isOpen()) {
+        return;
+      }
+      upgrade = handler;
+      if (readBuffer.position() == 0 && readBuffer.capacity() > UPGRADED_READ_BUFFER_SIZE) {
+        readBuffer = ByteBuffer.allocate(UPGRADED_READ_BUFFER_SIZE); // grows again for a handler that needs more
+      }
+      if (head.length > 0) {
+        reserve(head);
+        writeQueue.add(head);
+      }
+      key.interestOps(SelectionKey.OP_READ);
+      handler.onOpen(new Upgraded());
+      try {
+        flush();
+      } catch (IOException | CancelledKeyException e) {
+        close();
+        return;
+      }
+      if (readBuffer.position() > 0) {
+        deliverUpgradeData(); // sent by the client right behind the upgrade request
+      }
+    }
+
+    private void deliverUpgradeData() {
+      readBuffer.flip();
+      try {
+        upgrade.onData(readBuffer);
+      } finally {
+        readBuffer.compact();
+      }
+      if (!readBuffer.hasRemaining()) {
+        if (readBuffer.capacity() >= HttpRequestDecoder.maxRequestSize()) {
+          close(); // the handler does not make progress
+          return;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+      }
+    }
+
+    // Upgraded connection as seen by SSE / WebSocket code on any thread
+    private final class Upgraded implements UpgradedConnection {
+      @Override
+      public boolean send(ByteBuffer data, long maxQueued) {
+        int size = data.remaining();
+        synchronized (outbound) {
+          if (closed || (queuedBytes > 0 && queuedBytes + size > maxQueued)) {
+            return false;
+          }
+          queuedBytes += size;
+        }
+        loop.execute(() -> {
+          if (!channel.isOpen()) {
+            return;
+          }
+          writeQueue.add(new ByteBuffer[] { data });
+          try {
+            flush();
+          } catch (IOException | CancelledKeyException e) {
+            close();
+          }
+        });
+        return true;
+      }
+
+      @Override
+      public long getQueuedBytes() {
+        synchronized (outbound) {
+          return queuedBytes;
+        }
+      }
+
+      @Override
+      public void execute(Runnable task) {
+        loop.execute(task);
+      }
+
+      @Override
+      public boolean isOpen() {
+        synchronized (outbound) {
+          return !closed;
+        }
+      }
+
+      @Override
+      public void abort() {
+        loop.execute(Connection.this::close);
+      }
+
+      // Closes once the queued data is written
+      @Override
+      public void close() {
+        loop.execute(() -> {
+          if (writeQueue.isEmpty()) {
+            Connection.this.close();
+          } else {
+            keepAlive = false;
+            responseQueued = true;
+          }
+        });
+      }
+    }
+
+    private void reserve(ByteBuffer[] buffers) {
+      long size = 0;
+      for (ByteBuffer buffer : buffers) {
+        size += buffer.remaining();
+      }
+      synchronized (outbound) {
+        queuedBytes += size;
+      }
+    }
+
+    private void release(long written) {
+      synchronized (outbound) {
+        queuedBytes -= written;
+        if (queuedBytes <= MAX_QUEUED) {
+          outbound.notifyAll();
+        }
+      }
+    }
+
+    // Streamed response bodies: workers hand over copies and wait while the client is behind
+    private final class StreamTransport implements Transport {
+      @Override
+      public void write(ByteBuffer... buffers) throws IOException {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+          size += buffer.remaining();
+        }
+        if (size == 0) {
+          return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        for (ByteBuffer buffer : buffers) {
+          copy.put(buffer);
+        }
+        copy.flip();
+
+        synchronized (outbound) {
+          while (queuedBytes > MAX_QUEUED && !closed) {
+            try {
+              outbound.wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new IOException("Interrupted while streaming the response", e);
+            }
+          }
+          if (closed) {
+            throw new IOException("Connection closed");
+          }
+          queuedBytes += size;
+        }
+        loop.execute(() -> {
+          if (!channel.isOpen()) {
+            return;
+          }
+          writeQueue.add(new ByteBuffer[] { copy });
+          try {
+            Connection.this.flush();
+          } catch (IOException | CancelledKeyException e) {
+            close();
+          }
+        });
+      }
+
+      @Override
+      public void flush() {
+        // queued writes are flushed by the event loop as soon as the socket accepts them
+      }
+    }
+
+    // Grows the read buffer when a partial request fills it
+    private void ensureCapacity() {
+      if (readBuffer.hasRemaining()) {
+        return;
+      }
+      int max = HttpRequestDecoder.maxRequestSize();
+      if (readBuffer.capacity() >= max) {
+        rejectMalformed(new IllegalArgumentException("Request is too big"));
+        return;
+      }
+      ByteBuffer bigger = ByteBuffer.allocate(Math.min(max, readBuffer.capacity() * 2));
+      readBuffer.flip();
+      bigger.put(readBuffer);
+      readBuffer = bigger;
+    }
+
+    private void rejectMalformed(IllegalArgumentException e) {
+      processing = true;
+      readBuffer.clear();
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      respond(server.malformedResponse(e).toBuffers(), null, false);
+    }
+
+    void close() {
+      synchronized (outbound) {
+        closed = true;
+        outbound.notifyAll();
+      }
+      if (upgrade != null) {
+        UpgradeHandler handler = upgrade;
+        upgrade = null;
+        handler.onClose();
+      }
+      if (bodyPipe != null) {
+        bodyPipe.fail(new IOException("Connection closed while reading the request body"));
+        bodyPipe = null;
+        bodyDecoder = null;
+      }
+      for (Object pending : writeQueue) {
+        if (pending instanceof FileRegion) {
+          ((FileRegion) pending).close();
+        }
+      }
+      writeQueue.clear();
+      loop.connections.remove(this);
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  // -------------------------------------------------------
+  // File body sent with FileChannel.transferTo (sendfile) straight to the socket
+
+  private static final class FileRegion {
+
+    final FileChannel file;
+    final long length;
+    long position = 0;
+
+    FileRegion(File source, long length) throws IOException {
+      this.file = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+      this.length = length;
+    }
+
+    // Sends as much as the socket accepts; true once the whole region is written
+    boolean transferTo(SocketChannel target) throws IOException {
+      while (position < length) {
+        long sent = file.transferTo(position, length - position, target);
+        if (sent == 0) {
+          if (file.size() < length) {
+            throw new IOException("File shrank while being sent");
+          }
+          return false; // socket buffer full, wait for OP_WRITE
+        }
+        position += sent;
+      }
+      close();
+      return true;
+    }
+
+    void close() {
+      try {
+        file.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+}
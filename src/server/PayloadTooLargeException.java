@@ -0,0 +1,19 @@
+package server;
+
+// Thrown while reading a request body past its limit; the server answers 413
+public class PayloadTooLargeException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long limit;
+
+  public PayloadTooLargeException(long limit) {
+    super("Request body exceeds " + limit + " bytes");
+    this.limit = limit;
+  }
+
+  public long getLimit() {
+    return limit;
+  }
+
+}
@@ -0,0 +1,159 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// Request body read on demand from the connection, never buffered as a whole.
+// Reading past the limit (server default or BodyLimit middleware) throws PayloadTooLargeException.
+abstract class RequestBody extends InputStream {
+
+  private final long contentLength; // -1 for chunked bodies
+  private long limit;
+  private long received = 0;
+  private boolean complete = false;
+
+  RequestBody(long contentLength, long limit) {
+    this.contentLength = contentLength;
+    this.limit = limit;
+  }
+
+  // Reads the next body bytes, -1 once the whole body was read
+  protected abstract int readBody(byte[] b, int off, int len) throws IOException;
+
+  long getContentLength() {
+    return contentLength;
+  }
+
+  long getLimit() {
+    return limit;
+  }
+
+  void setLimit(long limit) {
+    this.limit = limit;
+  }
+
+  long getReceived() {
+    return received;
+  }
+
+  boolean isComplete() {
+    return complete;
+  }
+
+  void markRead(long count) {
+    received += count;
+    complete = true;
+  }
+
+  // The declared length is checked up front, chunked bodies while they arrive
+  void checkLimit() {
+    if (contentLength > limit || received > limit) {
+      throw new PayloadTooLargeException(limit);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] one = new byte[1];
+    int read = read(one, 0, 1);
+    return read == -1 ? -1 : one[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (complete) {
+      return -1;
+    }
+    checkLimit();
+    if (len == 0) {
+      return 0;
+    }
+    // one byte past the limit is enough to notice an oversized chunked body
+    int read = readBody(b, off, (int) Math.min(len, Math.max(1, limit - received)));
+    if (read == -1) {
+      complete = true;
+      return -1;
+    }
+    received += read;
+    checkLimit();
+    return read;
+  }
+
+  // Reads the rest of the body into memory (used by HttpRequest.getBody())
+  byte[] readFully() throws IOException {
+    checkLimit();
+    int initial = contentLength >= 0 ? (int) contentLength : 8192;
+    byte[] data = new byte[Math.max(initial, 16)];
+    int size = 0;
+    while (true) {
+      if (size == data.length) {
+        data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, data.length * 2L));
+      }
+      int read = read(data, size, data.length - size);
+      if (read == -1) {
+        return size == data.length ? data : Arrays.copyOf(data, size);
+      }
+      size += read;
+    }
+  }
+
+  // Skips what the handler did not read, up to max bytes; true when the body is fully consumed
+  boolean discard(long max) {
+    if (complete) {
+      return true;
+    }
+    if (contentLength >= 0 && contentLength - received > max) {
+      return false;
+    }
+    byte[] scratch = new byte[8192];
+    long skipped = 0;
+    try {
+      while (skipped <= max) {
+        int read = readBody(scratch, 0, scratch.length);
+        if (read == -1) {
+          complete = true;
+          return true;
+        }
+        skipped += read;
+      }
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+    return false;
+  }
+
+  // Body already held in memory (NIO requests whose body arrived with the head)
+  static final class Buffered extends RequestBody {
+    private final byte[] data;
+    private int pos = 0;
+
+    Buffered(byte[] data, long limit) {
+      super(data.length, limit);
+      this.data = data;
+    }
+
+    @Override
+    protected int readBody(byte[] b, int off, int len) {
+      if (pos == data.length) {
+        return -1;
+      }
+      int count = Math.min(len, data.length - pos);
+      System.arraycopy(data, pos, b, off, count);
+      pos += count;
+      return count;
+    }
+
+    @Override
+    byte[] readFully() throws IOException {
+      if (pos > 0) {
+        return super.readFully();
+      }
+      checkLimit();
+      pos = data.length;
+      markRead(data.length);
+      return data; // no copy, nobody else holds the array
+    }
+  }
+
+}
@@ -0,0 +1,283 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Micro-cache for GET routes whose answer rarely changes. 200 responses with a buffered body are
+// kept as bytes (status, headers, body) for ttl ms, keyed by method, path with query and the vary()
+// headers. Concurrent misses for one key run the handler once; the other requests wait for its answer.
+// With server compression the body is stored compressed, once per negotiated Content-Encoding, so a
+// hit does not compress it again.
+//
+//   ResponseCache cats = new ResponseCache().ttl(5000);
+//   router.get("/", cats, (HttpHandler) (req, res) -> res.json(db.getAll()));
+//   router.post("/", cats.invalidating(), (HttpHandler) (req, res) -> ...);   // or cats.invalidate()
+//   server.use("/cats", cats);                                                // a whole prefix
+public class ResponseCache implements Middleware {
+
+  private static final long COALESCE_TIMEOUT_MS = 30_000; // a waiter gives up and runs the handler itself
+  private static final int MAX_ENTRIES = 10_000;
+
+  private long ttlMillis = 1000;
+  private long capacity = 16 * 1024 * 1024; // body bytes kept
+  private final List<String> varyHeaders = new ArrayList<>();
+
+  private final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true); // LRU, guarded by this
+  private long cachedBytes = 0;
+  private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong(); // bumped by invalidate(): older misses are not stored
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private static final class Entry {
+    final String path;
+    final int status;
+    final Map<String, String> headers;
+    final byte[] body;
+    final long expiresAt;
+
+    Entry(String path, int status, Map<String, String> headers, byte[] body, long expiresAt) {
+      this.path = path;
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  // How long a response is served from the cache
+  public ResponseCache ttl(long millis) {
+    if (millis <= 0) {
+      throw new IllegalArgumentException("ttl must be positive");
+    }
+    this.ttlMillis = millis;
+    return this;
+  }
+
+  // Body bytes kept in memory; the least recently used responses go first
+  public synchronized ResponseCache capacity(long bytes) {
+    this.capacity = bytes;
+    evict();
+    return this;
+  }
+
+  // Request header that changes the answer (e.g. "Authorization", "Accept-Language"), part of the key
+  public ResponseCache vary(String header) {
+    varyHeaders.add(header);
+    return this;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  // Requests that waited for a concurrent miss instead of running the handler
+  public long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public synchronized int getEntries() {
+    return cache.size();
+  }
+
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  // Drops every response
+  public void invalidate() {
+    generation.incrementAndGet();
+    synchronized (this) {
+      cache.clear();
+      cachedBytes = 0;
+    }
+  }
+
+  // Drops the responses whose path (with query) starts with pathPrefix
+  public void invalidate(String pathPrefix) {
+    generation.incrementAndGet();
+    synchronized (this) {
+      Iterator<Entry> entries = cache.values().iterator();
+      while (entries.hasNext()) {
+        Entry entry = entries.next();
+        if (entry.path.startsWith(pathPrefix)) {
+          cachedBytes -= entry.body.length;
+          entries.remove();
+        }
+      }
+    }
+  }
+
+  // For write routes: clears the cache once the handler answered without an error
+  public Middleware invalidating() {
+    return (req, res, next) -> {
+      next.next();
+      if (res.getStatusCode() < 400) {
+        invalidate();
+      }
+    };
+  }
+
+  @Override
+  public void handle(HttpRequest req, HttpResponse res, Next next) {
+    if (!"GET".equals(req.getMethod())) {
+      next.next();
+      return;
+    }
+    String key = key(req, res);
+    Entry entry = lookup(key);
+    if (entry != null) {
+      hits.increment();
+      replay(entry, res);
+      return;
+    }
+
+    CompletableFuture<Entry> mine = new CompletableFuture<>();
+    CompletableFuture<Entry> running = loading.putIfAbsent(key, mine);
+    if (running != null) {
+      coalesced.increment();
+      entry = await(running);
+      if (entry != null) {
+        replay(entry, res);
+      } else {
+        next.next(); // the answer could not be cached (error, streamed body, ...)
+      }
+      return;
+    }
+
+    misses.increment();
+    long started = generation.get();
+    Entry stored = null;
+    try {
+      next.next();
+      stored = capture(req, res);
+      if (stored != null && generation.get() != started) {
+        stored = null; // invalidated while the handler ran, the answer may be stale
+      }
+      if (stored != null) {
+        store(key, stored);
+      }
+    } finally {
+      loading.remove(key, mine);
+      mine.complete(stored);
+    }
+  }
+
+  private String key(HttpRequest req, HttpResponse res) {
+    // the encoding the server would compress with (Vary: Accept-Encoding), not the raw header:
+    // "gzip, deflate" and "gzip" share an entry
+    String encoding = res.getCompression() != null ? Compression.negotiate(req.getHeader("Accept-Encoding")) : null;
+    if (varyHeaders.isEmpty() && encoding == null) {
+      return req.getMethod() + " " + req.getPath();
+    }
+    StringBuilder key = new StringBuilder(req.getMethod()).append(' ').append(req.getPath());
+    for (String header : varyHeaders) {
+      String value = req.getHeader(header);
+      key.append('\n').append(value != null ? value : "");
+    }
+    if (encoding != null) {
+      key.append("\nencoding=").append(encoding);
+    }
+    return key.toString();
+  }
+
+  private synchronized Entry lookup(String key) {
+    Entry entry = cache.get(key);
+    if (entry != null && entry.expiresAt - System.currentTimeMillis() <= 0) {
+      cache.remove(key);
+      cachedBytes -= entry.body.length;
+      return null;
+    }
+    return entry;
+  }
+
+  private Entry await(CompletableFuture<Entry> running) {
+    try {
+      return running.get(COALESCE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException | TimeoutException e) {
+      return null;
+    }
+  }
+
+  // Only plain 200 answers with a buffered body that is the same for every client
+  private Entry capture(HttpRequest req, HttpResponse res) {
+    if (res.getStatusCode() != 200 || !res.isBuffered() || res.getHeaders().containsKey("Set-Cookie")) {
+      return null;
+    }
+    String cacheControl = res.getHeaders().get("Cache-Control");
+    if (cacheControl != null && (cacheControl.contains("no-store") || cacheControl.contains("private"))) {
+      return null;
+    }
+    Compression compression = res.getCompression();
+    if (compression != null) {
+      // compressed here, before it is stored; the server skips a body that has a Content-Encoding
+      compression.apply(req, res);
+    }
+    byte[] body = res.getRawBody();
+    if (body == null) {
+      String text = res.getBody();
+      body = text != null ? text.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+    if (body.length > capacity) {
+      return null;
+    }
+    Map<String, String> headers = new HashMap<>(res.getHeaders());
+    headers.remove("Connection"); // set per connection by the server
+    headers.remove("Keep-Alive");
+    return new Entry(req.getPath(), 200, headers, body, System.currentTimeMillis() + ttlMillis);
+  }
+
+  private synchronized void store(String key, Entry entry) {
+    Entry previous = cache.put(key, entry);
+    if (previous != null) {
+      cachedBytes -= previous.body.length;
+    }
+    cachedBytes += entry.body.length;
+    evict();
+  }
+
+  private void evict() {
+    Iterator<Entry> eldest = cache.values().iterator();
+    while ((cachedBytes > capacity || cache.size() > MAX_ENTRIES) && eldest.hasNext()) {
+      cachedBytes -= eldest.next().body.length;
+      eldest.remove();
+      evictions.increment();
+    }
+  }
+
+  // The stored bytes are shared by every hit, they are never modified
+  private static void replay(Entry entry, HttpResponse res) {
+    res.status(entry.status);
+    res.setRawBody(entry.body);
+    for (Map.Entry<String, String> header : entry.headers.entrySet()) {
+      res.addHeader(header.getKey(), header.getValue());
+    }
+  }
+
+}
@@ -0,0 +1,230 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Body written by the handler while it runs (HttpResponse.getOutputStream / write / flush / end).
+// The head goes out on the first flush, with "Transfer-Encoding: chunked" unless the handler set a
+// Content-Length. A response ended before any flush is sent like a regular one, with a Content-Length.
+// With HttpServer.setCompression(...) a compressible body is gzip/deflate encoded on its way out.
+final class ResponseStream extends OutputStream {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final byte[] CRLF = { '\r', '\n' };
+  private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final HttpResponse res;
+  private final Transport transport; // null when the response is not bound to a connection
+  private final boolean chunkedAllowed; // HTTP/1.0 clients get a close-delimited body instead
+
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  private int count = 0;
+  private boolean committed = false;
+  private boolean chunked = false;
+  private boolean ended = false;
+  private long declaredLength = -1;
+  private long written = 0;
+  private OutputStream encoder; // compressor in front of the transport, once the head chose an encoding
+  private long plainBytes = 0;
+  private long compressNanos = 0;
+
+  ResponseStream(HttpResponse res, Transport transport, boolean chunkedAllowed) {
+    this.res = res;
+    this.transport = transport;
+    this.chunkedAllowed = chunkedAllowed;
+  }
+
+  boolean isCommitted() {
+    return committed;
+  }
+
+  boolean isEnded() {
+    return ended;
+  }
+
+  // Body bytes sent so far
+  long getWritten() {
+    return written + count;
+  }
+
+  // The connection can serve another request once this body is complete
+  boolean isReusable() {
+    return ended && (!committed || chunked || written == declaredLength);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (count == buffer.length) {
+      drain();
+    }
+    buffer[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (len <= buffer.length - count) {
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+      return;
+    }
+    if (transport == null) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + len));
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+      return;
+    }
+    // large writes go out as their own chunk, without passing through the buffer
+    send(b, off, len);
+  }
+
+  // Sends the head (first time) and everything buffered so far
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    if (transport == null) {
+      return;
+    }
+    send(buffer, 0, 0);
+    if (encoder != null) {
+      encoder.flush(); // sync flush: the client can decode everything written so far
+    }
+    transport.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    end();
+  }
+
+  void end() throws IOException {
+    if (ended) {
+      return;
+    }
+    ended = true;
+    if (!committed) {
+      res.completeBuffered(Arrays.copyOf(buffer, count));
+      count = 0;
+      return;
+    }
+    if (encoder != null) {
+      send(buffer, 0, 0);
+      long start = Compression.cpuTime();
+      encoder.close(); // compressor trailer, as the last data chunk
+      compressNanos += Compression.cpuTime() - start;
+      res.getCompression().record(plainBytes, written, compressNanos);
+      if (chunked) {
+        transport.write(ByteBuffer.wrap(LAST_CHUNK));
+      }
+      transport.flush();
+      return;
+    }
+    ByteBuffer[] data = frame(buffer, 0, 0, null);
+    ByteBuffer[] out = chunked ? append(data, ByteBuffer.wrap(LAST_CHUNK)) : data;
+    transport.write(out);
+    transport.flush();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (ended) {
+      throw new IOException("Response already ended");
+    }
+  }
+
+  private void drain() throws IOException {
+    if (transport == null) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    } else {
+      send(buffer, 0, 0);
+    }
+  }
+
+  // Writes the buffered bytes followed by b[off, off + len) (head first, when not committed yet)
+  private void send(byte[] b, int off, int len) throws IOException {
+    ByteBuffer head = null;
+    if (!committed) {
+      committed = true;
+      String encoding = res.streamEncoding(); // drops Content-Length when it compresses
+      String length = res.getHeaders().get("Content-Length");
+      if (length != null) {
+        declaredLength = Long.parseLong(length.trim());
+      }
+      chunked = chunkedAllowed && declaredLength == -1;
+      head = ByteBuffer.wrap(res.commitHead(chunked));
+      if (encoding != null) {
+        transport.write(head);
+        head = null;
+        encoder = res.getCompression().open(new Wire(), encoding, true);
+      }
+    }
+    if (encoder != null) {
+      long start = Compression.cpuTime();
+      encoder.write(buffer, 0, count);
+      encoder.write(b, off, len);
+      compressNanos += Compression.cpuTime() - start;
+      plainBytes += count + len;
+      count = 0;
+      return;
+    }
+    transport.write(frame(b, off, len, head));
+  }
+
+  // Compressed bytes, framed as chunks as the compressor produces them
+  private final class Wire extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return;
+      }
+      written += len;
+      if (!chunked) {
+        transport.write(ByteBuffer.wrap(b, off, len));
+        return;
+      }
+      transport.write(ByteBuffer.wrap((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII)),
+          ByteBuffer.wrap(b, off, len), ByteBuffer.wrap(CRLF));
+    }
+  }
+
+  private ByteBuffer[] frame(byte[] b, int off, int len, ByteBuffer head) {
+    int total = count + len;
+    ByteBuffer[] parts = new ByteBuffer[5];
+    int n = 0;
+    if (head != null) {
+      parts[n++] = head;
+    }
+    if (total > 0) {
+      if (chunked) {
+        parts[n++] = ByteBuffer.wrap((Integer.toHexString(total) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      }
+      if (count > 0) {
+        parts[n++] = ByteBuffer.wrap(buffer, 0, count);
+      }
+      if (len > 0) {
+        parts[n++] = ByteBuffer.wrap(b, off, len);
+      }
+      if (chunked) {
+        parts[n++] = ByteBuffer.wrap(CRLF);
+      }
+    }
+    written += total;
+    count = 0;
+    return Arrays.copyOf(parts, n);
+  }
+
+  private static ByteBuffer[] append(ByteBuffer[] buffers, ByteBuffer last) {
+    ByteBuffer[] out = Arrays.copyOf(buffers, buffers.length + 1);
+    out[buffers.length] = last;
+    return out;
+  }
+
+}
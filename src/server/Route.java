@@ -7,6 +7,8 @@ public class Route {
   String path;
   List<Middleware> middlewares;
   HttpHandler handler;
+  MiddlewareChain chain; // global + route middlewares, resolved when the server compiles its routes
+  long maxBodySize = -1; // from a BodyLimit in the chain, -1 for the server default
 
   public Route(String method, String path, List<Middleware> middlewares, HttpHandler httpHandler) {
     this.method = method;
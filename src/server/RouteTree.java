@@ -0,0 +1,243 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Routes compiled into one segment trie per HTTP method.
+// Matching walks the request path once, without split/regex:
+// static segments win over ":param" segments, which win over "*" wildcards.
+class RouteTree {
+
+  private final Map<String, Node> roots = new HashMap<>();
+
+  static RouteTree compile(Map<String, List<Route>> routes) {
+    RouteTree tree = new RouteTree();
+    routes.forEach((method, routeList) -> {
+      for (Route route : routeList) {
+        tree.insert(method, route);
+      }
+    });
+    tree.roots.values().forEach(Node::freeze);
+    return tree;
+  }
+
+  // Returns the matched route (path params are set on the request), or null
+  Route find(HttpRequest req) {
+    Node root = roots.get(req.getMethod());
+    if (root == null) {
+      return null;
+    }
+    String path = req.getCleanPath();
+    int end = path.length();
+    while (end > 1 && path.charAt(end - 1) == '/') {
+      end--; // "/cats/" matches "/cats"
+    }
+    Match match = new Match();
+    if (!root.match(path, 0, end, match)) {
+      return null;
+    }
+    Node matched = match.node;
+    if (match.paramCount > 0) {
+      // names come from the matched route itself, sibling routes may name the same segment differently
+      Map<String, String> params = new HashMap<>();
+      for (int i = 0; i < match.paramCount; i++) {
+        params.put(matched.paramNames[i], path.substring(match.paramStarts[i], match.paramEnds[i]));
+      }
+      req.setPathParams(params);
+    }
+    return matched.route;
+  }
+
+  private void insert(String method, Route route) {
+    Node node = roots.computeIfAbsent(method, k -> new Node());
+    String path = route.path.startsWith("/") ? route.path : "/" + route.path;
+    int pos = 0;
+    int end = path.length();
+    while (end > 1 && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    List<String> paramNames = new ArrayList<>();
+    boolean isRoot = end == 1;
+    while (!isRoot && pos < end) {
+      int segEnd = path.indexOf('/', pos + 1);
+      if (segEnd == -1 || segEnd > end) {
+        segEnd = end;
+      }
+      String segment = path.substring(pos + 1, segEnd);
+      if (segment.startsWith(":")) {
+        node = node.paramChild();
+        paramNames.add(segment.substring(1));
+      } else if (segment.startsWith("*")) {
+        node = node.wildcardChild();
+        paramNames.add(segment.length() > 1 ? segment.substring(1) : "*");
+        break; // a wildcard swallows the rest of the path
+      } else {
+        node = node.staticChild(segment);
+      }
+      pos = segEnd;
+    }
+    if (node.route == null) {
+      node.route = route; // first registration wins, like the old linear scan
+      node.paramNames = paramNames.toArray(new String[0]);
+    }
+  }
+
+  // -------------------------------------------------------
+
+  // Captured params as offsets into the path; strings are only built for the winning route
+  private static final class Match {
+    Node node;
+    int[] paramStarts;
+    int[] paramEnds;
+    int paramCount;
+
+    void push(int start, int end) {
+      if (paramStarts == null) {
+        paramStarts = new int[4];
+        paramEnds = new int[4];
+      } else if (paramCount == paramStarts.length) {
+        paramStarts = Arrays.copyOf(paramStarts, paramCount * 2);
+        paramEnds = Arrays.copyOf(paramEnds, paramCount * 2);
+      }
+      paramStarts[paramCount] = start;
+      paramEnds[paramCount] = end;
+      paramCount++;
+    }
+  }
+
+  private static final class Node {
+    Route route;
+    String[] paramNames; // names of the params captured on the way to this route
+
+    // static children in an open addressing table keyed by segment text
+    private List<String> pendingLabels = new ArrayList<>();
+    private List<Node> pendingNodes = new ArrayList<>();
+    private String[] labels;
+    private Node[] children;
+    private int mask;
+
+    Node param;
+    Node wildcard;
+
+    Node staticChild(String label) {
+      int index = pendingLabels.indexOf(label);
+      if (index != -1) {
+        return pendingNodes.get(index);
+      }
+      Node child = new Node();
+      pendingLabels.add(label);
+      pendingNodes.add(child);
+      return child;
+    }
+
+    Node paramChild() {
+      if (param == null) {
+        param = new Node();
+      }
+      return param;
+    }
+
+    Node wildcardChild() {
+      if (wildcard == null) {
+        wildcard = new Node();
+      }
+      return wildcard;
+    }
+
+    void freeze() {
+      int capacity = 2;
+      while (capacity < pendingLabels.size() * 2) {
+        capacity <<= 1;
+      }
+      labels = new String[capacity];
+      children = new Node[capacity];
+      mask = capacity - 1;
+      for (int i = 0; i < pendingLabels.size(); i++) {
+        String label = pendingLabels.get(i);
+        int slot = spread(label.hashCode()) & mask;
+        while (labels[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        labels[slot] = label;
+        children[slot] = pendingNodes.get(i);
+        pendingNodes.get(i).freeze();
+      }
+      pendingLabels = null;
+      pendingNodes = null;
+      if (param != null) {
+        param.freeze();
+      }
+      if (wildcard != null) {
+        wildcard.freeze();
+      }
+    }
+
+    // pos points at a '/' (or end); tries static, then param, then wildcard, backtracking on failure
+    boolean match(String path, int pos, int end, Match match) {
+      if (pos >= end || (pos == 0 && end == 1)) {
+        if (route != null) {
+          match.node = this;
+          return true;
+        }
+        if (wildcard != null && wildcard.route != null) {
+          match.push(end, end);
+          match.node = wildcard;
+          return true;
+        }
+        return false;
+      }
+
+      int segStart = pos + 1;
+      int segEnd = path.indexOf('/', segStart);
+      if (segEnd == -1 || segEnd > end) {
+        segEnd = end;
+      }
+
+      Node child = findStatic(path, segStart, segEnd);
+      if (child != null && child.match(path, segEnd, end, match)) {
+        return true;
+      }
+
+      if (param != null) {
+        int saved = match.paramCount;
+        match.push(segStart, segEnd);
+        if (param.match(path, segEnd, end, match)) {
+          return true;
+        }
+        match.paramCount = saved;
+      }
+
+      if (wildcard != null && wildcard.route != null) {
+        match.push(segStart, end);
+        match.node = wildcard;
+        return true;
+      }
+      return false;
+    }
+
+    private Node findStatic(String path, int start, int end) {
+      int length = end - start;
+      int h = 0;
+      for (int i = start; i < end; i++) {
+        h = 31 * h + path.charAt(i); // same as String.hashCode()
+      }
+      int slot = spread(h) & mask;
+      String label;
+      while ((label = labels[slot]) != null) {
+        if (label.length() == length && path.regionMatches(start, label, 0, length)) {
+          return children[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      return null;
+    }
+
+    private static int spread(int h) {
+      return h ^ (h >>> 16);
+    }
+  }
+
+}
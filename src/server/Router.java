@@ -93,6 +93,36 @@ public class Router {
     addRoute("OPTIONS", path, handler);
   }
 
+  // Server-Sent Events: GET route that keeps the connection open, after the usual middlewares
+  public void sse(String path, Object... handlers) {
+    Object last = handlers[handlers.length - 1];
+    if (!(last instanceof SseHandler)) {
+      throw new IllegalArgumentException("Last argument must be SseHandler");
+    }
+    Object[] chain = handlers.clone();
+    chain[chain.length - 1] = SseStream.route((SseHandler) last);
+    addRoute("GET", path, chain);
+  }
+
+  public void sse(String path, SseHandler handler) {
+    addRoute("GET", path, SseStream.route(handler));
+  }
+
+  // WebSocket: GET route answered with 101 Switching Protocols, after the usual middlewares
+  public void ws(String path, Object... handlers) {
+    Object last = handlers[handlers.length - 1];
+    if (!(last instanceof WebSocketHandler)) {
+      throw new IllegalArgumentException("Last argument must be WebSocketHandler");
+    }
+    Object[] chain = handlers.clone();
+    chain[chain.length - 1] = WebSocket.route((WebSocketHandler) last);
+    addRoute("GET", path, chain);
+  }
+
+  public void ws(String path, WebSocketHandler handler) {
+    addRoute("GET", path, WebSocket.route(handler));
+  }
+
   protected Map<String, String> matchPathWithParams(String routePath, String requestPath) {
     String[] routeParts = routePath.split("/");
     String[] reqParts = requestPath.split("/");
@@ -0,0 +1,64 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Worker pools that can be plugged into HttpServer.setExecutor(...)
+public class ServerExecutors {
+
+  private ServerExecutors() {
+  }
+
+  // Fixed number of platform threads with an unbounded queue (the default, 10 threads)
+  public static ExecutorService fixed(int threads) {
+    return Executors.newFixedThreadPool(threads, namedThreads("http-worker"));
+  }
+
+  // Grows from coreThreads to maxThreads once the queue is full; beyond that the policy decides
+  // (AbortPolicy answers 503, CallerRunsPolicy pushes back on the accepting thread)
+  public static ExecutorService bounded(int coreThreads, int maxThreads, int queueCapacity,
+      RejectedExecutionHandler rejectionPolicy) {
+    return new ThreadPoolExecutor(coreThreads, maxThreads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), namedThreads("http-worker"), rejectionPolicy);
+  }
+
+  public static ExecutorService bounded(int coreThreads, int maxThreads, int queueCapacity) {
+    return bounded(coreThreads, maxThreads, queueCapacity, new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  // One virtual thread per task (JDK 21+). Blocking handlers no longer need pool tuning.
+  public static ExecutorService virtual() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException e) {
+      throw new UnsupportedOperationException("Virtual threads require JDK 21 or newer");
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Could not create virtual thread executor", e);
+    }
+  }
+
+  public static boolean isVirtualThreadSupported() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static ThreadFactory namedThreads(String prefix) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+      thread.setDaemon(false);
+      return thread;
+    };
+  }
+
+}
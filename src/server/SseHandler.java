@@ -0,0 +1,8 @@
+package server;
+
+// Called once per Server-Sent Events subscriber, after the route's middlewares ran
+@FunctionalInterface
+public interface SseHandler {
+
+  void open(HttpRequest req, SseStream stream);
+}
@@ -0,0 +1,132 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fans events out to many SSE subscribers:
+//   SseHub hub = new SseHub().heartbeat(15_000).overflow(SseHub.Overflow.DISCONNECT);
+//   server.sse("/events", (req, stream) -> hub.subscribe(stream));
+//   hub.broadcast("cat-added", json);
+// Each event is encoded once; every subscriber gets a view of the same bytes.
+public class SseHub {
+
+  // What happens to a subscriber that cannot keep up (more than maxQueuedBytes waiting)
+  public enum Overflow {
+    DROP, // it misses the event
+    DISCONNECT // it is closed, EventSource reconnects and can resume with Last-Event-ID
+  }
+
+  private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(":\n\n".getBytes(StandardCharsets.UTF_8))
+      .asReadOnlyBuffer();
+
+  private final Set<SseStream> subscribers = ConcurrentHashMap.newKeySet();
+  private long maxQueuedBytes = SseStream.DEFAULT_MAX_QUEUED;
+  private Overflow overflow = Overflow.DROP;
+  private ScheduledExecutorService heartbeat;
+
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder disconnected = new LongAdder();
+
+  public SseHub maxQueuedBytes(long bytes) {
+    this.maxQueuedBytes = bytes;
+    return this;
+  }
+
+  public SseHub overflow(Overflow overflow) {
+    this.overflow = overflow;
+    return this;
+  }
+
+  // Sends a comment line to every subscriber at this interval, on one daemon thread per hub
+  public synchronized SseHub heartbeat(long intervalMillis) {
+    if (heartbeat != null) {
+      heartbeat.shutdownNow();
+    }
+    heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "sse-heartbeat");
+      thread.setDaemon(true);
+      return thread;
+    });
+    heartbeat.scheduleAtFixedRate(() -> publish(HEARTBEAT), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  public void subscribe(SseStream stream) {
+    stream.setMaxQueuedBytes(maxQueuedBytes);
+    subscribers.add(stream);
+    stream.onClose(() -> subscribers.remove(stream));
+  }
+
+  public void unsubscribe(SseStream stream) {
+    subscribers.remove(stream);
+  }
+
+  public int broadcast(String data) {
+    return broadcast(null, data, null);
+  }
+
+  public int broadcast(String event, String data) {
+    return broadcast(event, data, null);
+  }
+
+  // Returns the number of subscribers the event was queued for
+  public int broadcast(String event, String data, String id) {
+    int count = publish(ByteBuffer.wrap(SseStream.encode(event, data, id)).asReadOnlyBuffer());
+    delivered.add(count);
+    return count;
+  }
+
+  private int publish(ByteBuffer encoded) {
+    int count = 0;
+    for (SseStream stream : subscribers) {
+      if (stream.sendEncoded(encoded.duplicate())) {
+        count++;
+      } else if (!stream.isOpen()) {
+        subscribers.remove(stream);
+      } else if (overflow == Overflow.DISCONNECT) {
+        disconnected.increment();
+        subscribers.remove(stream);
+        stream.abort();
+      } else {
+        dropped.increment();
+      }
+    }
+    return count;
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  public long getDeliveredEvents() {
+    return delivered.sum();
+  }
+
+  public long getDroppedEvents() {
+    return dropped.sum();
+  }
+
+  public long getDisconnectedSubscribers() {
+    return disconnected.sum();
+  }
+
+  // Stops the heartbeat and closes every subscriber
+  public synchronized void close() {
+    if (heartbeat != null) {
+      heartbeat.shutdownNow();
+      heartbeat = null;
+    }
+    for (SseStream stream : subscribers) {
+      stream.close();
+    }
+    subscribers.clear();
+  }
+
+}
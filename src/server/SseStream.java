@@ -0,0 +1,208 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// One Server-Sent Events subscriber (text/event-stream).
+// After the route handler returns, the connection is owned by an event loop:
+// sends never block and no worker thread is held while the client listens.
+public final class SseStream {
+
+  static final long DEFAULT_MAX_QUEUED = 1024 * 1024;
+
+  private final HttpRequest request;
+  private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+  private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED;
+
+  // guarded by this: events sent before the engine took the connection over
+  private UpgradedConnection connection;
+  private List<ByteBuffer> pending = new ArrayList<>();
+  private long pendingBytes = 0;
+  private volatile boolean closed = false;
+
+  private SseStream(HttpRequest request) {
+    this.request = request;
+  }
+
+  // Route handler registered by Router.sse(...)
+  static HttpHandler route(SseHandler handler) {
+    return (req, res) -> {
+      SseStream stream = new SseStream(req);
+      res.status(200);
+      res.addHeader("Content-Type", "text/event-stream; charset=UTF-8");
+      res.addHeader("Cache-Control", "no-cache");
+      res.addHeader("Connection", "keep-alive");
+      res.addHeader("X-Accel-Buffering", "no"); // no proxy buffering (nginx)
+      res.upgrade(stream.new Handler());
+      handler.open(req, stream);
+    };
+  }
+
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+  // Id of the last event the client saw before reconnecting, or null
+  public String getLastEventId() {
+    return request.getHeader("Last-Event-ID");
+  }
+
+  // Bytes allowed to wait for this client before send() refuses new events
+  public void setMaxQueuedBytes(long maxQueuedBytes) {
+    this.maxQueuedBytes = maxQueuedBytes;
+  }
+
+  public boolean send(String data) {
+    return send(null, data, null);
+  }
+
+  public boolean send(String event, String data) {
+    return send(event, data, null);
+  }
+
+  // False when the stream is closed or the client is too far behind (the event is not sent)
+  public boolean send(String event, String data, String id) {
+    return sendEncoded(ByteBuffer.wrap(encode(event, data, id)));
+  }
+
+  // ": text" line, ignored by EventSource; keeps intermediaries from closing an idle stream
+  public boolean comment(String text) {
+    return sendEncoded(ByteBuffer.wrap((": " + text + "\n\n").getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  public long getQueuedBytes() {
+    UpgradedConnection conn;
+    synchronized (this) {
+      conn = connection;
+      if (conn == null) {
+        return pendingBytes;
+      }
+    }
+    return conn.getQueuedBytes();
+  }
+
+  // Runs once when the client disconnects or the stream is closed
+  public void onClose(Runnable listener) {
+    closeListeners.add(listener);
+    if (closed && closeListeners.remove(listener)) {
+      listener.run();
+    }
+  }
+
+  public void close() {
+    UpgradedConnection conn;
+    synchronized (this) {
+      conn = connection;
+      if (conn == null) {
+        markClosed();
+        return;
+      }
+    }
+    conn.close();
+  }
+
+  // Drops the client right away, without flushing what it has not read yet
+  void abort() {
+    UpgradedConnection conn;
+    synchronized (this) {
+      conn = connection;
+      if (conn == null) {
+        markClosed();
+        return;
+      }
+    }
+    conn.abort();
+  }
+
+  // Shared, pre-encoded event (SseHub); the buffer content must not change
+  boolean sendEncoded(ByteBuffer event) {
+    if (closed) {
+      return false;
+    }
+    UpgradedConnection conn;
+    synchronized (this) {
+      conn = connection;
+      if (conn == null) {
+        if (pendingBytes + event.remaining() > maxQueuedBytes) {
+          return false;
+        }
+        pending.add(event);
+        pendingBytes += event.remaining();
+        return true;
+      }
+    }
+    return conn.send(event, maxQueuedBytes);
+  }
+
+  static byte[] encode(String event, String data, String id) {
+    StringBuilder sb = new StringBuilder(data.length() + 32);
+    if (id != null) {
+      sb.append("id: ").append(id).append('\n');
+    }
+    if (event != null) {
+      sb.append("event: ").append(event).append('\n');
+    }
+    // a multi-line payload becomes several data lines, joined again by the client
+    int start = 0;
+    while (true) {
+      int newline = data.indexOf('\n', start);
+      int end = newline == -1 ? data.length() : newline;
+      sb.append("data: ").append(data, start, end > start && data.charAt(end - 1) == '\r' ? end - 1 : end)
+          .append('\n');
+      if (newline == -1) {
+        break;
+      }
+      start = newline + 1;
+    }
+    sb.append('\n');
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private void markClosed() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Runnable listener : closeListeners) {
+      if (closeListeners.remove(listener)) {
+        listener.run();
+      }
+    }
+  }
+
+  // Event loop side
+  private final class Handler implements UpgradeHandler {
+    @Override
+    public void onOpen(UpgradedConnection conn) {
+      synchronized (SseStream.this) {
+        for (ByteBuffer event : pending) {
+          conn.send(event, Long.MAX_VALUE);
+        }
+        pending = null;
+        pendingBytes = 0;
+        connection = conn;
+      }
+      if (closed) {
+        conn.close(); // closed before the engine took over
+      }
+    }
+
+    @Override
+    public void onData(ByteBuffer data) {
+      data.position(data.limit()); // nothing is expected from the client
+    }
+
+    @Override
+    public void onClose() {
+      markClosed();
+    }
+  }
+
+}
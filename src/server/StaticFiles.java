@@ -0,0 +1,481 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+// Static file serving for HttpServer.staticFiles(...).
+// Resolved files are cached (bytes for small files, metadata for all) in a size-bounded LRU
+// with a strong ETag and Last-Modified, so revalidations answer 304 without touching the disk.
+// Entries are invalidated by a WatchService on the static folders (or by mtime when unavailable).
+// Large files are streamed by the connection engine (transferTo / sendfile).
+class StaticFiles {
+
+  static final int SMALL_FILE_LIMIT = 64 * 1024;
+  static final int MAX_ENTRIES = 10_000;
+
+  private static final Map<String, String> KNOWN_TYPES = new HashMap<>();
+  static {
+    KNOWN_TYPES.put("html", "text/html");
+    KNOWN_TYPES.put("htm", "text/html");
+    KNOWN_TYPES.put("css", "text/css");
+    KNOWN_TYPES.put("js", "text/javascript");
+    KNOWN_TYPES.put("json", "application/json");
+    KNOWN_TYPES.put("txt", "text/plain");
+    KNOWN_TYPES.put("png", "image/png");
+    KNOWN_TYPES.put("jpg", "image/jpeg");
+    KNOWN_TYPES.put("jpeg", "image/jpeg");
+    KNOWN_TYPES.put("gif", "image/gif");
+    KNOWN_TYPES.put("svg", "image/svg+xml");
+    KNOWN_TYPES.put("ico", "image/x-icon");
+    KNOWN_TYPES.put("webp", "image/webp");
+    KNOWN_TYPES.put("woff", "font/woff");
+    KNOWN_TYPES.put("woff2", "font/woff2");
+    KNOWN_TYPES.put("pdf", "application/pdf");
+  }
+
+  private final Map<String, String> routes = new HashMap<>();
+  private final Map<String, String> mimeTypes = new ConcurrentHashMap<>();
+
+  private final Map<Path, Entry> cache = new LinkedHashMap<>(16, 0.75f, true); // LRU, guarded by this
+  // normalized request path -> resolved file; at most one key per file (and directory) below the
+  // static folders, however the client spells the path
+  private final Map<String, Path> aliases = new ConcurrentHashMap<>();
+  private long cachedBytes = 0;
+  private long capacity = 16 * 1024 * 1024;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder notModified = new LongAdder();
+
+  private volatile Compression compression;
+  private volatile WatchService watcher;
+  private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+
+  private static final class Entry {
+    final Path path;
+    final File file;
+    final byte[] bytes; // null for files streamed from disk
+    final long lastModified;
+    final long size;
+    final String etag;
+    final String lastModifiedHeader;
+    final String contentType;
+    final File gzipSibling; // precompressed "<file>.gz" next to a streamed file, if up to date
+    volatile byte[] gzip; // compressed variants of small files, built on first request
+    volatile byte[] deflate;
+
+    Entry(Path path, byte[] bytes, long lastModified, long size, String etag, String contentType,
+        File gzipSibling) {
+      this.path = path;
+      this.file = path.toFile();
+      this.bytes = bytes;
+      this.lastModified = lastModified;
+      this.size = size;
+      this.etag = etag;
+      this.lastModifiedHeader = DateTimeFormatter.RFC_1123_DATE_TIME
+          .format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC));
+      this.contentType = contentType;
+      this.gzipSibling = gzipSibling;
+    }
+
+    // Strong ETags differ per representation (RFC 7232 2.3.3)
+    String etag(String encoding) {
+      return encoding == null ? etag : etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+  }
+
+  void add(String webPath, String localPath) {
+    routes.put(normalize(webPath), localPath); // "/public/" matches the normalized "/public/..." paths too
+  }
+
+  boolean isEmpty() {
+    return routes.isEmpty();
+  }
+
+  void setCompression(Compression compression) {
+    this.compression = compression;
+  }
+
+  // Bytes of small files kept in memory
+  synchronized void setCapacity(long capacity) {
+    this.capacity = capacity;
+    evict();
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  long getNotModified() {
+    return notModified.sum();
+  }
+
+  // Serves the request from the static folders; false if no file matches
+  boolean serve(HttpRequest req, HttpResponse res) {
+    String urlPath = normalize(req.getCleanPath());
+    Entry entry = lookup(urlPath);
+    if (entry != null) {
+      hits.increment();
+    } else {
+      File file = resolve(urlPath);
+      if (file == null) {
+        return false;
+      }
+      misses.increment();
+      try {
+        entry = load(file);
+      } catch (IOException e) {
+        return false;
+      }
+      if (aliases.size() >= MAX_ENTRIES) {
+        aliases.clear(); // more files than the cache holds, start over
+      }
+      aliases.put(urlPath, entry.path);
+    }
+
+    String encoding = negotiateEncoding(req, res, entry);
+    String etag = entry.etag(encoding);
+    res.addHeader("ETag", etag);
+    res.addHeader("Last-Modified", entry.lastModifiedHeader);
+    if (isNotModified(req, entry, etag)) {
+      notModified.increment();
+      res.status(304).send("");
+      return true;
+    }
+
+    if (encoding == null) {
+      if (entry.bytes != null) {
+        res.status(200).send(entry.bytes, entry.contentType);
+      } else {
+        res.status(200).sendFile(entry.file, entry.contentType);
+      }
+    } else if (entry.bytes != null) {
+      res.status(200).send(compressedVariant(entry, encoding), entry.contentType);
+      res.addHeader("Content-Encoding", encoding);
+    } else {
+      res.status(200).sendFile(entry.gzipSibling, entry.contentType);
+      res.addHeader("Content-Encoding", encoding);
+      compression.record(entry.size, entry.gzipSibling.length(), 0);
+    }
+    return true;
+  }
+
+  // Encoding to serve for this entry, or null for the plain file
+  private String negotiateEncoding(HttpRequest req, HttpResponse res, Entry entry) {
+    Compression config = compression;
+    if (config == null || !config.isCompressible(entry.contentType) || entry.size < config.getMinSize()) {
+      return null;
+    }
+    Compression.varyOnAcceptEncoding(res);
+    String encoding = Compression.negotiate(req.getHeader("Accept-Encoding"));
+    if (entry.bytes == null) {
+      // large files are never compressed on the fly, only a precompressed sibling is used
+      return Compression.GZIP.equals(encoding) && entry.gzipSibling != null ? encoding : null;
+    }
+    return encoding;
+  }
+
+  // Compressed once per entry and encoding, then reused until the file changes
+  private byte[] compressedVariant(Entry entry, String encoding) {
+    boolean gzip = Compression.GZIP.equals(encoding);
+    byte[] variant = gzip ? entry.gzip : entry.deflate;
+    long nanos = 0;
+    if (variant == null) {
+      long start = Compression.cpuTime();
+      variant = compression.compress(entry.bytes, encoding);
+      nanos = Compression.cpuTime() - start;
+      if (gzip) {
+        entry.gzip = variant;
+      } else {
+        entry.deflate = variant;
+      }
+    }
+    compression.record(entry.bytes.length, variant.length, nanos);
+    return variant;
+  }
+
+  // Watches the static folders so cached entries need no stat per request
+  void watch() {
+    if (watcher != null || routes.isEmpty()) {
+      return;
+    }
+    try {
+      WatchService service = FileSystems.getDefault().newWatchService();
+      for (String folder : routes.values()) {
+        registerTree(service, Path.of(folder).toAbsolutePath().normalize());
+      }
+      Thread thread = new Thread(() -> processEvents(service), "static-watch");
+      thread.setDaemon(true);
+      thread.start();
+      watcher = service;
+    } catch (IOException e) {
+      // stay on per-request mtime checks
+    }
+  }
+
+  void close() {
+    WatchService service = watcher;
+    watcher = null;
+    if (service != null) {
+      try {
+        service.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  // Maps a request path to a file below one of the static folders, or null
+  File resolve(String path) {
+    for (Map.Entry<String, String> route : routes.entrySet()) {
+      String prefix = route.getKey();
+      if (!path.startsWith(prefix)) {
+        continue;
+      }
+      File root = new File(route.getValue());
+      File file = new File(root, path.substring(prefix.length()));
+      if (!isInside(root, file)) {
+        continue; // "../" must not escape the static folder
+      }
+      if (file.isDirectory()) {
+        file = new File(file, "index.html");
+      }
+      if (file.exists() && !file.isDirectory()) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  String contentType(File file) {
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    String extension = dot == -1 ? "" : name.substring(dot + 1).toLowerCase();
+    return mimeTypes.computeIfAbsent(extension, ext -> {
+      String known = KNOWN_TYPES.get(ext);
+      if (known != null) {
+        return known;
+      }
+      try {
+        String probed = Files.probeContentType(file.toPath());
+        return probed != null ? probed : "application/octet-stream";
+      } catch (IOException e) {
+        return "application/octet-stream";
+      }
+    });
+  }
+
+  // -------------------------------------------------------
+
+  private Entry lookup(String urlPath) {
+    Path path = aliases.get(urlPath);
+    if (path == null) {
+      return null;
+    }
+    Entry entry;
+    synchronized (this) {
+      entry = cache.get(path);
+    }
+    if (entry == null) {
+      aliases.remove(urlPath);
+      return null;
+    }
+    if (watcher == null && entry.file.lastModified() != entry.lastModified) {
+      invalidate(path);
+      return null;
+    }
+    return entry;
+  }
+
+  private Entry load(File file) throws IOException {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    long lastModified = file.lastModified();
+    long size = file.length();
+    String contentType = contentType(file);
+
+    File gzipSibling = new File(file.getPath() + ".gz");
+    if (!gzipSibling.isFile() || gzipSibling.lastModified() < lastModified) {
+      gzipSibling = null;
+    }
+
+    Entry entry;
+    if (size <= SMALL_FILE_LIMIT) {
+      byte[] bytes = Files.readAllBytes(path);
+      CRC32C crc = new CRC32C();
+      crc.update(bytes);
+      String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bytes.length) + "\"";
+      entry = new Entry(path, bytes, lastModified, bytes.length, etag, contentType, null);
+    } else {
+      // hashing a large file on first hit would cost a full read, mtime + size identify the version
+      String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+      entry = new Entry(path, null, lastModified, size, etag, contentType, gzipSibling);
+    }
+
+    synchronized (this) {
+      Entry previous = cache.put(path, entry);
+      if (previous != null && previous.bytes != null) {
+        cachedBytes -= previous.bytes.length;
+      }
+      if (entry.bytes != null) {
+        cachedBytes += entry.bytes.length;
+      }
+      evict();
+    }
+    return entry;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<Path, Entry>> eldest = cache.entrySet().iterator();
+    while ((cachedBytes > capacity || cache.size() > MAX_ENTRIES) && eldest.hasNext()) {
+      Entry removed = eldest.next().getValue();
+      if (removed.bytes != null) {
+        cachedBytes -= removed.bytes.length;
+      }
+      eldest.remove();
+    }
+  }
+
+  private synchronized void invalidate(Path path) {
+    Entry removed = cache.remove(path);
+    if (removed != null && removed.bytes != null) {
+      cachedBytes -= removed.bytes.length;
+    }
+  }
+
+  private synchronized void invalidateAll() {
+    cache.clear();
+    cachedBytes = 0;
+    aliases.clear();
+  }
+
+  // If-None-Match takes precedence over If-Modified-Since (RFC 7232 6)
+  private static boolean isNotModified(HttpRequest req, Entry entry, String etag) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        String candidate = tag.trim();
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        if (candidate.equals("*") || candidate.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    String ifModifiedSince = req.getHeader("If-Modified-Since");
+    if (ifModifiedSince != null) {
+      try {
+        long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+            .toInstant().toEpochMilli();
+        return entry.lastModified / 1000 <= since / 1000;
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private void registerTree(WatchService service, Path root) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return;
+    }
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirs.put(key, dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void processEvents(WatchService service) {
+    try {
+      while (true) {
+        WatchKey key = service.take();
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+            invalidateAll();
+            continue;
+          }
+          Path changed = dir.resolve((Path) event.context());
+          invalidate(changed);
+          String name = changed.getFileName().toString();
+          if (name.endsWith(".gz")) {
+            invalidate(changed.resolveSibling(name.substring(0, name.length() - 3)));
+          }
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            // a new file may now answer a request path that used to resolve elsewhere
+            aliases.clear();
+            if (Files.isDirectory(changed)) {
+              registerTree(service, changed);
+            }
+          }
+        }
+        if (!key.reset()) {
+          watchedDirs.remove(key);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // server stopped
+    } catch (IOException e) {
+      watcher = null; // fall back to mtime checks
+    }
+  }
+
+  // "/public//css/./a.css", "/public/css/a.css/" -> "/public/css/a.css"; ".." above the root is dropped
+  static String normalize(String path) {
+    if (path.indexOf("//") < 0 && path.indexOf("/.") < 0 && !path.endsWith("/")) {
+      return path; // already normal, the common case
+    }
+    ArrayDeque<String> segments = new ArrayDeque<>();
+    for (String segment : path.split("/")) {
+      if (segment.isEmpty() || segment.equals(".")) {
+        continue;
+      }
+      if (segment.equals("..")) {
+        segments.pollLast();
+      } else {
+        segments.addLast(segment);
+      }
+    }
+    return "/" + String.join("/", segments);
+  }
+
+  private static boolean isInside(File root, File file) {
+    Path rootPath = root.toPath().toAbsolutePath().normalize();
+    Path filePath = file.toPath().toAbsolutePath().normalize();
+    return filePath.startsWith(rootPath);
+  }
+
+}
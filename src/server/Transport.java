@@ -0,0 +1,33 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Client connection as seen by a worker that streams a response while the handler runs.
+// write() may block while the client is slow; the buffers can be reused once it returns.
+interface Transport {
+
+  void write(ByteBuffer... buffers) throws IOException;
+
+  void flush() throws IOException;
+
+  // Blocking engine: straight to the socket stream (buffered, flushed on flush())
+  static Transport of(OutputStream out) {
+    return new Transport() {
+      @Override
+      public void write(ByteBuffer... buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+          out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+          buffer.position(buffer.limit());
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        out.flush();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,13 @@
+package server;
+
+// A request body framed with a transfer coding other than "chunked"; the server answers 501
+// (RFC 7230 3.3.1) instead of handing still-encoded bytes to the route
+final class UnsupportedTransferEncodingException extends IllegalArgumentException {
+
+  private static final long serialVersionUID = 1L;
+
+  UnsupportedTransferEncodingException(String transferEncoding) {
+    super("Unsupported Transfer-Encoding: " + transferEncoding);
+  }
+
+}
@@ -0,0 +1,20 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+// Protocol spoken on a connection after it leaves HTTP/1.1 (Server-Sent Events, WebSocket, HTTP/2).
+// Callbacks run on the event loop that owns the connection and must not block.
+interface UpgradeHandler {
+
+  void onOpen(UpgradedConnection connection);
+
+  // Bytes received from the client, in read mode; unread bytes are offered again with the next read
+  void onData(ByteBuffer data);
+
+  void onClose();
+
+  // Everything queued so far has been written to the socket
+  default void onDrained() {
+  }
+
+}
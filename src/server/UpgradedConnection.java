@@ -0,0 +1,26 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+// Connection owned by an event loop after an upgrade; safe to use from any thread
+interface UpgradedConnection {
+
+  // Queues data without blocking. The buffer is shared, not copied: it must not change afterwards
+  // (a read-only duplicate of one broadcast buffer per subscriber is fine).
+  // Returns false when more than maxQueued bytes would be waiting for this client.
+  boolean send(ByteBuffer data, long maxQueued);
+
+  long getQueuedBytes();
+
+  // Runs the task on the event loop that owns the connection (where the UpgradeHandler callbacks run)
+  void execute(Runnable task);
+
+  boolean isOpen();
+
+  // Closes once the queued data is written
+  void close();
+
+  // Closes now, dropping whatever is still queued
+  void abort();
+
+}
@@ -0,0 +1,462 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// One WebSocket client (RFC 6455), after the handshake.
+// The connection is owned by an event loop: sends never block and an idle socket holds no thread.
+// Message listeners run on that event loop and must not block; hand slow work to an executor.
+public final class WebSocket {
+
+  static final long DEFAULT_MAX_QUEUED = 1024 * 1024;
+  static final int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+
+  private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  private final HttpRequest request;
+  private final List<Consumer<String>> textListeners = new CopyOnWriteArrayList<>();
+  private final List<Consumer<byte[]>> binaryListeners = new CopyOnWriteArrayList<>();
+  private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+  private volatile long maxQueuedBytes = DEFAULT_MAX_QUEUED;
+  private volatile int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+  // guarded by this: frames sent before the engine took the connection over
+  private UpgradedConnection connection;
+  private List<ByteBuffer> pending = new ArrayList<>();
+  private long pendingBytes = 0;
+  private boolean closeSent = false;
+  private volatile boolean closed = false;
+  private volatile int closeCode = 1005; // "no status received" until a close frame says otherwise
+  private volatile String closeReason = "";
+
+  private WebSocket(HttpRequest request) {
+    this.request = request;
+  }
+
+  // Route handler registered by Router.ws(...): checks the handshake and answers 101
+  static HttpHandler route(WebSocketHandler handler) {
+    return (req, res) -> {
+      if (!HttpServer.hasToken(req.getHeader("Upgrade"), "websocket")
+          || !HttpServer.hasToken(req.getHeader("Connection"), "upgrade")) {
+        res.status(400).json(Map.of("message", "Expected a WebSocket upgrade"));
+        return;
+      }
+      if (!"13".equals(req.getHeader("Sec-WebSocket-Version"))) {
+        res.status(426).json(Map.of("message", "Unsupported WebSocket version"));
+        res.addHeader("Sec-WebSocket-Version", "13");
+        return;
+      }
+      String key = req.getHeader("Sec-WebSocket-Key");
+      if (!isValidKey(key)) {
+        res.status(400).json(Map.of("message", "Invalid Sec-WebSocket-Key"));
+        return;
+      }
+      WebSocket socket = new WebSocket(req);
+      res.status(101);
+      res.addHeader("Upgrade", "websocket");
+      res.addHeader("Connection", "Upgrade");
+      res.addHeader("Sec-WebSocket-Accept", acceptKey(key));
+      res.upgrade(socket.new Handler());
+      handler.open(req, socket);
+    };
+  }
+
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+  // Text messages, reassembled from fragments and checked to be valid UTF-8
+  public void onMessage(Consumer<String> listener) {
+    textListeners.add(listener);
+  }
+
+  public void onBinary(Consumer<byte[]> listener) {
+    binaryListeners.add(listener);
+  }
+
+  // Runs once when the connection is gone, whichever side closed it
+  public void onClose(Runnable listener) {
+    closeListeners.add(listener);
+    if (closed && closeListeners.remove(listener)) {
+      listener.run();
+    }
+  }
+
+  // Bytes allowed to wait for this client before send() refuses new messages
+  public void setMaxQueuedBytes(long maxQueuedBytes) {
+    this.maxQueuedBytes = maxQueuedBytes;
+  }
+
+  // Larger incoming messages close the connection with 1009 (message too big)
+  public void setMaxMessageSize(int maxMessageSize) {
+    this.maxMessageSize = maxMessageSize;
+  }
+
+  // False when the socket is closing or the client is too far behind (the message is not sent)
+  public boolean send(String text) {
+    return sendEncoded(encode(WebSocketDecoder.TEXT, text.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  public boolean send(byte[] data) {
+    return sendEncoded(encode(WebSocketDecoder.BINARY, data));
+  }
+
+  public boolean ping(byte[] data) {
+    if (data.length > WebSocketDecoder.MAX_CONTROL_PAYLOAD) {
+      throw new IllegalArgumentException("Ping payload must be at most 125 bytes");
+    }
+    return sendEncoded(encode(WebSocketDecoder.PING, data));
+  }
+
+  // Text message encoded once and queued for every open socket; returns how many took it
+  public static int broadcast(Iterable<WebSocket> sockets, String text) {
+    ByteBuffer frame = encode(WebSocketDecoder.TEXT, text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    int count = 0;
+    for (WebSocket socket : sockets) {
+      if (socket.sendEncoded(frame.duplicate())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  public long getQueuedBytes() {
+    UpgradedConnection conn;
+    synchronized (this) {
+      conn = connection;
+      if (conn == null) {
+        return pendingBytes;
+      }
+    }
+    return conn.getQueuedBytes();
+  }
+
+  // Status of the close frame received from the client (1005 when it had none, 1006 when the TCP connection dropped)
+  public int getCloseCode() {
+    return closeCode;
+  }
+
+  public String getCloseReason() {
+    return closeReason;
+  }
+
+  public void close() {
+    close(1000, "");
+  }
+
+  // Sends a close frame; the TCP connection is closed once it is written
+  public void close(int code, String reason) {
+    byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+    if (text.length > WebSocketDecoder.MAX_CONTROL_PAYLOAD - 2) {
+      throw new IllegalArgumentException("Close reason must be at most 123 bytes");
+    }
+    byte[] payload = new byte[2 + text.length];
+    payload[0] = (byte) (code >> 8);
+    payload[1] = (byte) code;
+    System.arraycopy(text, 0, payload, 2, text.length);
+
+    ByteBuffer frame = encode(WebSocketDecoder.CLOSE, payload);
+    UpgradedConnection conn;
+    synchronized (this) {
+      if (closeSent || closed) {
+        return;
+      }
+      closeSent = true;
+      conn = connection;
+      if (conn == null) {
+        pending.add(frame); // onOpen sends it and closes
+        pendingBytes += frame.remaining();
+        return;
+      }
+    }
+    conn.send(frame, Long.MAX_VALUE);
+    conn.close();
+  }
+
+  // Pre-encoded frame (broadcast); the buffer content must not change
+  boolean sendEncoded(ByteBuffer frame) {
+    if (closed) {
+      return false;
+    }
+    UpgradedConnection conn;
+    synchronized (this) {
+      if (closeSent) {
+        return false;
+      }
+      conn = connection;
+      if (conn == null) {
+        if (pendingBytes + frame.remaining() > maxQueuedBytes) {
+          return false;
+        }
+        pending.add(frame);
+        pendingBytes += frame.remaining();
+        return true;
+      }
+    }
+    return conn.send(frame, maxQueuedBytes);
+  }
+
+  // Server frames are never masked
+  static ByteBuffer encode(int opcode, byte[] payload) {
+    int length = payload.length;
+    int header = length < 126 ? 2 : (length <= 0xFFFF ? 4 : 10);
+    ByteBuffer frame = ByteBuffer.allocate(header + length);
+    frame.put((byte) (0x80 | opcode));
+    if (length < 126) {
+      frame.put((byte) length);
+    } else if (length <= 0xFFFF) {
+      frame.put((byte) 126);
+      frame.putShort((short) length);
+    } else {
+      frame.put((byte) 127);
+      frame.putLong(length);
+    }
+    frame.put(payload);
+    frame.flip();
+    return frame;
+  }
+
+  static String acceptKey(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+      return Base64.getEncoder().encodeToString(digest);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+
+  // base64 of 16 random bytes
+  private static boolean isValidKey(String key) {
+    if (key == null) {
+      return false;
+    }
+    try {
+      return Base64.getDecoder().decode(key.trim()).length == 16;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static String decodeText(byte[] data, int length) {
+    CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+    try {
+      return decoder.decode(ByteBuffer.wrap(data, 0, length)).toString();
+    } catch (CharacterCodingException e) {
+      throw new WebSocketDecoder.ProtocolException(1007, "Invalid UTF-8 in a text message");
+    }
+  }
+
+  private void markClosed() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Runnable listener : closeListeners) {
+      if (closeListeners.remove(listener)) {
+        listener.run();
+      }
+    }
+  }
+
+  // Event loop side: frames in, messages and control replies out
+  private final class Handler implements UpgradeHandler, WebSocketDecoder.FrameHandler {
+
+    private final WebSocketDecoder decoder = new WebSocketDecoder(this);
+    private UpgradedConnection conn;
+    private boolean closing = false; // close received or protocol error: the rest of the input is ignored
+
+    // fragmented message being reassembled
+    private int messageOpcode = -1;
+    private byte[] message;
+    private int messageLength;
+
+    @Override
+    public void onOpen(UpgradedConnection connection) {
+      conn = connection;
+      boolean closeNow;
+      synchronized (WebSocket.this) {
+        for (ByteBuffer frame : pending) {
+          connection.send(frame, Long.MAX_VALUE);
+        }
+        pending = null;
+        pendingBytes = 0;
+        WebSocket.this.connection = connection;
+        closeNow = closeSent;
+      }
+      if (closeNow) {
+        connection.close(); // closed before the engine took over
+      }
+    }
+
+    @Override
+    public void onData(ByteBuffer data) {
+      if (closing) {
+        data.position(data.limit());
+        return;
+      }
+      try {
+        decoder.decode(data, maxMessageSize);
+      } catch (WebSocketDecoder.ProtocolException e) {
+        fail(e.code, e.getMessage());
+      } catch (RuntimeException e) {
+        System.err.println("❌ WebSocket listener error: " + e.getMessage());
+        fail(1011, "Internal error");
+      }
+      if (closing) {
+        data.position(data.limit());
+      }
+    }
+
+    @Override
+    public void onClose() {
+      if (closeCode == 1005 && !closing) {
+        closeCode = 1006; // the TCP connection ended without a close frame
+      }
+      markClosed();
+    }
+
+    @Override
+    public void onFrame(int opcode, boolean fin, byte[] payload) {
+      switch (opcode) {
+        case WebSocketDecoder.TEXT:
+        case WebSocketDecoder.BINARY:
+          if (messageOpcode != -1) {
+            throw new WebSocketDecoder.ProtocolException(1002, "New message before the previous one ended");
+          }
+          if (fin) {
+            deliver(opcode, payload, payload.length);
+          } else {
+            messageOpcode = opcode;
+            message = payload;
+            messageLength = payload.length;
+          }
+          break;
+        case WebSocketDecoder.CONTINUATION:
+          if (messageOpcode == -1) {
+            throw new WebSocketDecoder.ProtocolException(1002, "Continuation frame without a message");
+          }
+          append(payload);
+          if (fin) {
+            int type = messageOpcode;
+            byte[] data = message;
+            messageOpcode = -1;
+            message = null;
+            deliver(type, data, messageLength);
+          }
+          break;
+        case WebSocketDecoder.PING:
+          // within the queue limit: a client that pings and never reads must not grow the queue
+          if (!conn.send(encode(WebSocketDecoder.PONG, payload), maxQueuedBytes)) {
+            throw new WebSocketDecoder.ProtocolException(1008, "Client is not reading");
+          }
+          break;
+        case WebSocketDecoder.PONG:
+          break;
+        case WebSocketDecoder.CLOSE:
+          receiveClose(payload);
+          break;
+        default:
+          throw new WebSocketDecoder.ProtocolException(1002, "Unknown opcode " + opcode);
+      }
+    }
+
+    private void append(byte[] fragment) {
+      if ((long) messageLength + fragment.length > maxMessageSize) {
+        throw new WebSocketDecoder.ProtocolException(1009, "Message too big");
+      }
+      if (messageLength + fragment.length > message.length) {
+        message = Arrays.copyOf(message, Math.max(messageLength + fragment.length, message.length * 2));
+      }
+      System.arraycopy(fragment, 0, message, messageLength, fragment.length);
+      messageLength += fragment.length;
+    }
+
+    private void deliver(int opcode, byte[] data, int length) {
+      if (opcode == WebSocketDecoder.TEXT) {
+        String text = decodeText(data, length);
+        for (Consumer<String> listener : textListeners) {
+          listener.accept(text);
+        }
+      } else {
+        byte[] bytes = length == data.length ? data : Arrays.copyOf(data, length);
+        for (Consumer<byte[]> listener : binaryListeners) {
+          listener.accept(bytes);
+        }
+      }
+    }
+
+    // The client started the closing handshake: echo its status and close after the reply is written
+    private void receiveClose(byte[] payload) {
+      int code = 1005;
+      String reason = "";
+      if (payload.length == 1) {
+        throw new WebSocketDecoder.ProtocolException(1002, "Invalid close frame");
+      }
+      if (payload.length >= 2) {
+        code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+        if (!isValidCloseCode(code)) {
+          throw new WebSocketDecoder.ProtocolException(1002, "Invalid close code " + code);
+        }
+        reason = decodeText(Arrays.copyOfRange(payload, 2, payload.length), payload.length - 2);
+      }
+      closeCode = code;
+      closeReason = reason;
+      closing = true;
+      boolean reply;
+      synchronized (WebSocket.this) {
+        reply = !closeSent;
+        closeSent = true;
+      }
+      if (reply) {
+        byte[] echo = payload.length >= 2 ? new byte[] { payload[0], payload[1] } : new byte[0];
+        conn.send(encode(WebSocketDecoder.CLOSE, echo), Long.MAX_VALUE);
+      }
+      conn.close();
+    }
+
+    private void fail(int code, String reason) {
+      closing = true;
+      boolean reply;
+      synchronized (WebSocket.this) {
+        reply = !closeSent;
+        closeSent = true;
+      }
+      if (reply) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + Math.min(text.length, WebSocketDecoder.MAX_CONTROL_PAYLOAD - 2)];
+        payload[0] = (byte) (code >> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(text, 0, payload, 2, payload.length - 2);
+        conn.send(encode(WebSocketDecoder.CLOSE, payload), Long.MAX_VALUE);
+      }
+      conn.close();
+    }
+
+    private boolean isValidCloseCode(int code) {
+      if (code >= 3000 && code <= 4999) {
+        return true; // registered / private use
+      }
+      return code >= 1000 && code <= 1014 && code != 1004 && code != 1005 && code != 1006;
+    }
+  }
+
+}
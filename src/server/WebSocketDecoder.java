@@ -0,0 +1,133 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+// RFC 6455 frames sent by a client, parsed straight from the connection buffer.
+// A frame header is only consumed once complete; the payload is unmasked into its own
+// array as it arrives, so a large frame never has to fit in the read buffer.
+final class WebSocketDecoder {
+
+  static final int CONTINUATION = 0x0;
+  static final int TEXT = 0x1;
+  static final int BINARY = 0x2;
+  static final int CLOSE = 0x8;
+  static final int PING = 0x9;
+  static final int PONG = 0xA;
+
+  static final int MAX_CONTROL_PAYLOAD = 125;
+
+  // A whole frame, payload already unmasked
+  interface FrameHandler {
+    void onFrame(int opcode, boolean fin, byte[] payload);
+  }
+
+  // Violation the connection is failed with; code is the close status to send
+  static final class ProtocolException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int code;
+
+    ProtocolException(int code, String message) {
+      super(message);
+      this.code = code;
+    }
+  }
+
+  private final FrameHandler handler;
+
+  // frame whose payload is still arriving, null between frames
+  private byte[] payload;
+  private int payloadPos;
+  private int opcode;
+  private boolean fin;
+  private final byte[] mask = new byte[4];
+
+  WebSocketDecoder(FrameHandler handler) {
+    this.handler = handler;
+  }
+
+  // Consumes whole frames and payload bytes from the buffer; maxPayload bounds a single frame
+  void decode(ByteBuffer in, long maxPayload) throws ProtocolException {
+    while (true) {
+      if (payload == null && !readHeader(in, maxPayload)) {
+        return;
+      }
+      int count = Math.min(in.remaining(), payload.length - payloadPos);
+      unmask(in, count);
+      if (payloadPos < payload.length) {
+        return;
+      }
+      byte[] frame = payload;
+      payload = null;
+      handler.onFrame(opcode, fin, frame);
+    }
+  }
+
+  private boolean readHeader(ByteBuffer in, long maxPayload) {
+    int start = in.position();
+    if (in.remaining() < 2) {
+      return false;
+    }
+    int b0 = in.get(start) & 0xFF;
+    int b1 = in.get(start + 1) & 0xFF;
+    if ((b1 & 0x80) == 0) {
+      throw new ProtocolException(1002, "Client frames must be masked");
+    }
+    int headerLength = 2 + 4;
+    int lengthCode = b1 & 0x7F;
+    if (lengthCode == 126) {
+      headerLength += 2;
+    } else if (lengthCode == 127) {
+      headerLength += 8;
+    }
+    if (in.remaining() < headerLength) {
+      return false; // offered again with more bytes
+    }
+
+    if ((b0 & 0x70) != 0) {
+      throw new ProtocolException(1002, "Reserved bits set without an extension");
+    }
+    int op = b0 & 0x0F;
+    boolean last = (b0 & 0x80) != 0;
+    if (op != CONTINUATION && op != TEXT && op != BINARY && op != CLOSE && op != PING && op != PONG) {
+      throw new ProtocolException(1002, "Unknown opcode " + op);
+    }
+
+    in.position(start + 2);
+    long length;
+    if (lengthCode == 126) {
+      length = in.getShort() & 0xFFFF;
+    } else if (lengthCode == 127) {
+      length = in.getLong();
+      if (length < 0) {
+        throw new ProtocolException(1002, "Invalid frame length");
+      }
+    } else {
+      length = lengthCode;
+    }
+    in.get(mask);
+
+    boolean control = (op & 0x8) != 0;
+    if (control && (!last || length > MAX_CONTROL_PAYLOAD)) {
+      throw new ProtocolException(1002, "Control frames must be whole and at most 125 bytes");
+    }
+    if (length > maxPayload || length > Integer.MAX_VALUE - 8) {
+      throw new ProtocolException(1009, "Frame too big");
+    }
+    opcode = op;
+    fin = last;
+    payload = new byte[(int) length];
+    payloadPos = 0;
+    return true;
+  }
+
+  private void unmask(ByteBuffer in, int count) {
+    in.get(payload, payloadPos, count);
+    for (int i = 0; i < count; i++) {
+      int index = payloadPos + i;
+      payload[index] ^= mask[index & 3];
+    }
+    payloadPos += count;
+  }
+
+}
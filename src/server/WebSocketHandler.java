@@ -0,0 +1,8 @@
+package server;
+
+// Called once per WebSocket client, after the route's middlewares ran and the handshake succeeded
+@FunctionalInterface
+public interface WebSocketHandler {
+
+  void open(HttpRequest req, WebSocket socket);
+}